@@ -0,0 +1,54 @@
+package benchmarks;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Access to the playground code paths being benchmarked. The playground classes live in the
+ * default package, which can't be imported from here (and JMH does not allow benchmarks in the
+ * default package), so they are called through method handles.
+ */
+final class Playground {
+
+	static final MethodHandle STAGE_BUNDLE = find("Step1_FileStager", "stageBundle", String.class, java.util.List.class, java.util.Map.class);
+	static final MethodHandle GET_TAGS_FOR_NEW_PATIENT = find("Step1_FileStager", "getTagsForNewPatient");
+	static final MethodHandle NEW_GZIP_WRITER = find("Step1_FileStager", "newGzipWriter", java.io.OutputStream.class);
+	static final MethodHandle PARSE_LINE = find("Step2_DataUploader", "parseLine", String.class);
+	static final MethodHandle NEW_TIMING_CLIENT_FACTORY = find("Step3_Queries", "newTimingClientFactory", boolean.class);
+	static final MethodHandle EXECUTE_TIMED = find("Step3_Queries", "executeTimed", ca.uhn.fhir.rest.gclient.IQuery.class, boolean.class);
+	static final MethodHandle FINISH_TIMING = find("ResponseTimer", "finish");
+
+	private Playground() {
+		// nothing
+	}
+
+	/**
+	 * Reads one of the gzipped fixture files in <code>src/jmh/resources/fixtures</code>
+	 */
+	static String readFixture(String theName) throws IOException {
+		try (InputStream inputStream = Playground.class.getResourceAsStream("/fixtures/" + theName)) {
+			if (inputStream == null) {
+				throw new IOException("Unknown fixture: " + theName);
+			}
+			return IOUtils.toString(new GZIPInputStream(inputStream), StandardCharsets.UTF_8);
+		}
+	}
+
+	private static MethodHandle find(String theClassName, String theMethodName, Class<?>... theParameterTypes) {
+		try {
+			Method method = Class.forName(theClassName).getDeclaredMethod(theMethodName, theParameterTypes);
+			method.setAccessible(true);
+			return MethodHandles.lookup().unreflect(method);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Can not find " + theClassName + "#" + theMethodName, e);
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package benchmarks;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks a Step3_Queries search (a page of 100 tagged Encounters) through the same client
+ * stack as the query tests: the timing client factory, {@code Step3_Queries.executeTimed} and
+ * the ResponseTimer interceptor which buffers the body before HAPI parses it. The response is
+ * served from a loopback HTTP server, so the difference between <code>discardBody=false</code>
+ * and <code>discardBody=true</code> is the client side parse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueriesBenchmark {
+
+	@Param({"false", "true"})
+	public boolean myDiscardBody;
+
+	private HttpServer myServer;
+	private IGenericClient myClient;
+
+	@Setup
+	public void setup() throws Throwable {
+		byte[] searchResponse = Playground.readFixture("search-encounters.json.gz").getBytes(StandardCharsets.UTF_8);
+		myServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 100);
+		myServer.createContext("/", theExchange -> {
+			try (theExchange) {
+				theExchange.getResponseHeaders().add(Constants.HEADER_CONTENT_TYPE, Constants.CT_FHIR_JSON_NEW + Constants.CHARSET_UTF8_CTSUFFIX);
+				theExchange.sendResponseHeaders(200, searchResponse.length);
+				try (OutputStream outputStream = theExchange.getResponseBody()) {
+					outputStream.write(searchResponse);
+				}
+			}
+		});
+		myServer.start();
+
+		IRestfulClientFactory clientFactory = (IRestfulClientFactory) Playground.NEW_TIMING_CLIENT_FACTORY.invoke(myDiscardBody);
+		// The fixture server only knows how to answer searches
+		clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+		myClient = clientFactory.newGenericClient("http://localhost:" + myServer.getAddress().getPort() + "/fhir");
+	}
+
+	@TearDown
+	public void tearDown() {
+		myServer.stop(0);
+	}
+
+	@Benchmark
+	public Bundle searchEncounters(Blackhole theBlackhole) throws Throwable {
+		Bundle retVal;
+		try {
+			retVal = (Bundle) Playground.EXECUTE_TIMED.invoke(myClient.search().forResource("Encounter").returnBundle(Bundle.class), false);
+		} finally {
+			theBlackhole.consume(Playground.FINISH_TIMING.invoke());
+		}
+		return retVal;
+	}
+
+}
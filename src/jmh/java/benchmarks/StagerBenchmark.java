@@ -0,0 +1,81 @@
+package benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.commons.io.output.NullOutputStream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStreamWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the Step1_FileStager hot paths
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StagerBenchmark {
+
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+	private static final List<String> TAGS = List.of("20PCT-1", "20PCT-4", "1PCT-7");
+
+	@Param({"small", "median", "huge"})
+	public String myFixture;
+
+	private String myContents;
+	private String myStagedLine;
+	private OutputStreamWriter myGzipWriter;
+
+	@Setup
+	public void setup() throws Throwable {
+		myContents = Playground.readFixture("synthea-" + myFixture + ".json.gz");
+		myStagedLine = stageAndEncode();
+		myGzipWriter = (OutputStreamWriter) Playground.NEW_GZIP_WRITER.invoke(NullOutputStream.NULL_OUTPUT_STREAM);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		myGzipWriter.close();
+	}
+
+	/**
+	 * The work done by ProcessorThread for each file: parse, filter, retag and encode. The
+	 * per-type resource counts are skipped so that the stager's global counters aren't touched.
+	 */
+	@Benchmark
+	public String stageAndEncode() throws Throwable {
+		Bundle bundle = (Bundle) Playground.STAGE_BUNDLE.invoke(myContents, TAGS, null);
+		return ourCtx.newJsonParser().encodeResourceToString(bundle);
+	}
+
+	/**
+	 * The work done by WriterThread for each file
+	 */
+	@Benchmark
+	public void writeGzipLine() throws Exception {
+		myGzipWriter.write(myStagedLine);
+		myGzipWriter.write("\n");
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public List<String> getTagsForNewPatient() throws Throwable {
+		return (List<String>) Playground.GET_TAGS_FOR_NEW_PATIENT.invoke();
+	}
+
+}
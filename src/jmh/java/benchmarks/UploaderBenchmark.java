@@ -0,0 +1,50 @@
+package benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the Step2_DataUploader parse of each staged ndjson line
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploaderBenchmark {
+
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+
+	@Param({"small", "median", "huge"})
+	public String myFixture;
+
+	private String myStagedLine;
+
+	@Setup
+	public void setup() throws Throwable {
+		String contents = Playground.readFixture("synthea-" + myFixture + ".json.gz");
+		Bundle staged = (Bundle) Playground.STAGE_BUNDLE.invoke(contents, List.of("20PCT-1"), null);
+		myStagedLine = ourCtx.newJsonParser().encodeResourceToString(staged);
+	}
+
+	@Benchmark
+	public Bundle parseLine() throws Throwable {
+		return (Bundle) Playground.PARSE_LINE.invoke(myStagedLine);
+	}
+
+}
@@ -0,0 +1,306 @@
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Records which patients carry which tags while the data is staged, so that the true number
+ * of matches for a tag query is known without asking the server. Each staged patient gets an
+ * ordinal, and the oracle holds:
+ * <ul>
+ *    <li>A {@link CompactBitmap} of patient ordinals for each tag</li>
+ *    <li>The number of resources of each type carrying each tag</li>
+ *    <li>The number of resources of each type in each patient's bundle, so that counts for
+ *    combinations of tags can be computed for types other than Patient</li>
+ * </ul>
+ * The oracle is saved next to the staged patient file it describes, e.g.
+ * <code>patient-files.oracle.gz</code> for <code>patient-files.ndjson.gz</code>.
+ */
+public class CardinalityOracle {
+	private static final Logger ourLog = LoggerFactory.getLogger(CardinalityOracle.class);
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+	private static final String PATIENT = "Patient";
+
+	private final Map<String, CompactBitmap> myTagToPatients = new TreeMap<>();
+	private final Map<String, Map<String, AtomicLong>> myTagToTypeToCount = new TreeMap<>();
+	/**
+	 * Indexed by patient ordinal. Counts are capped at 65535.
+	 */
+	private final Map<String, char[]> myTypeToPatientResourceCounts = new TreeMap<>();
+	private int myPatientCount;
+
+	/**
+	 * The parts of a patient bundle which the oracle records, which are much smaller than the
+	 * bundle itself when it has to be held on to until it is known to have been written
+	 */
+	public static class BundleSummary {
+		private final List<String> myTags;
+		private final Map<String, Integer> myTypeToCount;
+
+		private BundleSummary(List<String> theTags, Map<String, Integer> theTypeToCount) {
+			myTags = theTags;
+			myTypeToCount = theTypeToCount;
+		}
+	}
+
+	public static BundleSummary summarize(Bundle theBundle) {
+		List<String> tags = new ArrayList<>();
+		Map<String, Integer> typeToCount = new HashMap<>();
+		for (Bundle.BundleEntryComponent nextEntry : theBundle.getEntry()) {
+			Resource resource = nextEntry.getResource();
+			if (resource instanceof Patient) {
+				tags = getTags(resource);
+			}
+			typeToCount.merge(ourCtx.getResourceType(resource), 1, Integer::sum);
+		}
+		return new BundleSummary(tags, typeToCount);
+	}
+
+	/**
+	 * Records a staged patient bundle. Thread safe.
+	 */
+	public void recordBundle(Bundle theBundle) {
+		recordBundle(summarize(theBundle));
+	}
+
+	/**
+	 * Records a staged patient bundle. Thread safe.
+	 */
+	public synchronized void recordBundle(BundleSummary theSummary) {
+		List<String> tags = theSummary.myTags;
+		Map<String, Integer> typeToCount = theSummary.myTypeToCount;
+
+		int ordinal = myPatientCount++;
+		for (String nextTag : tags) {
+			myTagToPatients.computeIfAbsent(nextTag, t -> new CompactBitmap()).add(ordinal);
+			Map<String, AtomicLong> tagTypeToCount = myTagToTypeToCount.computeIfAbsent(nextTag, t -> new TreeMap<>());
+			typeToCount.forEach((type, count) -> tagTypeToCount.computeIfAbsent(type, t -> new AtomicLong()).addAndGet(count));
+		}
+		for (Map.Entry<String, Integer> next : typeToCount.entrySet()) {
+			if (!PATIENT.equals(next.getKey())) {
+				char[] counts = myTypeToPatientResourceCounts.computeIfAbsent(next.getKey(), t -> new char[1024]);
+				if (counts.length <= ordinal) {
+					counts = Arrays.copyOf(counts, Math.max(counts.length * 2, ordinal + 1));
+					myTypeToPatientResourceCounts.put(next.getKey(), counts);
+				}
+				counts[ordinal] = (char) Math.min(next.getValue(), Character.MAX_VALUE);
+			}
+		}
+	}
+
+	/**
+	 * The tags are read from whichever representation the bundle was staged with
+	 */
+	private static List<String> getTags(Resource theResource) {
+		for (TagModeEnum nextMode : TagModeEnum.values()) {
+			List<String> tags = nextMode.getTags(theResource.getMeta());
+			if (!tags.isEmpty()) {
+				return tags;
+			}
+		}
+		return List.of();
+	}
+
+	/**
+	 * Counts the resources of a type belonging to patients which match a tag search
+	 *
+	 * @param theTagGroups Each patient must match at least one tag from every group (an AND of OR-lists)
+	 * @param theTagMode   How the tags are searched for, since this decides which stored tags each searched tag matches
+	 */
+	public synchronized long countResources(String theResourceType, List<List<String>> theTagGroups, TagModeEnum theTagMode) {
+		// A single tag is the common case and doesn't need any bitmap operations
+		if (theTagGroups.size() == 1 && theTagGroups.get(0).size() == 1) {
+			List<String> storedTags = getMatchingStoredTags(theTagGroups.get(0).get(0), theTagMode);
+			if (storedTags.size() <= 1) {
+				return storedTags
+					.stream()
+					.map(t -> myTagToTypeToCount.get(t).get(theResourceType))
+					.mapToLong(t -> t != null ? t.get() : 0)
+					.sum();
+			}
+		}
+
+		CompactBitmap patients = findPatients(theTagGroups, theTagMode);
+		if (PATIENT.equals(theResourceType)) {
+			return patients.getCardinality();
+		}
+		char[] counts = myTypeToPatientResourceCounts.get(theResourceType);
+		if (counts == null) {
+			return 0;
+		}
+		AtomicLong retVal = new AtomicLong();
+		patients.forEach(t -> retVal.addAndGet(counts[t]));
+		return retVal.get();
+	}
+
+	private CompactBitmap findPatients(List<List<String>> theTagGroups, TagModeEnum theTagMode) {
+		CompactBitmap retVal = null;
+		for (List<String> nextGroup : theTagGroups) {
+			CompactBitmap groupPatients = new CompactBitmap();
+			for (String nextTag : nextGroup) {
+				for (String nextStoredTag : getMatchingStoredTags(nextTag, theTagMode)) {
+					groupPatients = CompactBitmap.or(groupPatients, myTagToPatients.get(nextStoredTag));
+				}
+			}
+			retVal = retVal == null ? groupPatients : CompactBitmap.and(retVal, groupPatients);
+		}
+		return retVal != null ? retVal : new CompactBitmap();
+	}
+
+	private List<String> getMatchingStoredTags(String theSearchedTag, TagModeEnum theTagMode) {
+		List<String> retVal = new ArrayList<>();
+		for (String nextStoredTag : myTagToPatients.keySet()) {
+			if (theTagMode.matches(theSearchedTag, nextStoredTag)) {
+				retVal.add(nextStoredTag);
+			}
+		}
+		return retVal;
+	}
+
+	public synchronized int getPatientCount() {
+		return myPatientCount;
+	}
+
+	/**
+	 * @return The approximate number of bytes used by the bitmaps and per-patient counts
+	 */
+	public synchronized long getSizeInBytes() {
+		long retVal = 0;
+		for (CompactBitmap next : myTagToPatients.values()) {
+			retVal += next.getSizeInBytes();
+		}
+		for (char[] next : myTypeToPatientResourceCounts.values()) {
+			retVal += Math.min(next.length, myPatientCount) * 2L;
+		}
+		return retVal;
+	}
+
+	public synchronized void write(File theFile) throws IOException {
+		try (DataOutputStream output = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(theFile, false))))) {
+			output.writeInt(myPatientCount);
+			output.writeInt(myTagToPatients.size());
+			for (Map.Entry<String, CompactBitmap> next : myTagToPatients.entrySet()) {
+				output.writeUTF(next.getKey());
+				next.getValue().writeTo(output);
+				Map<String, AtomicLong> typeToCount = myTagToTypeToCount.get(next.getKey());
+				output.writeInt(typeToCount.size());
+				for (Map.Entry<String, AtomicLong> nextCount : typeToCount.entrySet()) {
+					output.writeUTF(nextCount.getKey());
+					output.writeLong(nextCount.getValue().get());
+				}
+			}
+			output.writeInt(myTypeToPatientResourceCounts.size());
+			for (Map.Entry<String, char[]> next : myTypeToPatientResourceCounts.entrySet()) {
+				output.writeUTF(next.getKey());
+				for (int i = 0; i < myPatientCount; i++) {
+					output.writeChar(i < next.getValue().length ? next.getValue()[i] : 0);
+				}
+			}
+		}
+		ourLog.info("Wrote cardinality oracle for {} patients ({} tags, ~{} KB in memory) to {}", myPatientCount, myTagToPatients.size(), getSizeInBytes() / 1024, theFile);
+	}
+
+	public static CardinalityOracle read(File theFile) throws IOException {
+		CardinalityOracle retVal = new CardinalityOracle();
+		try (DataInputStream input = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(theFile))))) {
+			retVal.myPatientCount = input.readInt();
+			int tagCount = input.readInt();
+			for (int i = 0; i < tagCount; i++) {
+				String tag = input.readUTF();
+				retVal.myTagToPatients.put(tag, CompactBitmap.readFrom(input));
+				Map<String, AtomicLong> typeToCount = new TreeMap<>();
+				int typeCount = input.readInt();
+				for (int j = 0; j < typeCount; j++) {
+					typeToCount.put(input.readUTF(), new AtomicLong(input.readLong()));
+				}
+				retVal.myTagToTypeToCount.put(tag, typeToCount);
+			}
+			int typeCount = input.readInt();
+			for (int i = 0; i < typeCount; i++) {
+				String type = input.readUTF();
+				char[] counts = new char[Math.max(retVal.myPatientCount, 1024)];
+				for (int j = 0; j < retVal.myPatientCount; j++) {
+					counts[j] = input.readChar();
+				}
+				retVal.myTypeToPatientResourceCounts.put(type, counts);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Loads an existing oracle so that more patients can be added to it, since the staged files are appended to.
+	 * If the patient file already holds patients but has no oracle (e.g. it was staged before oracles were
+	 * written), a new oracle would silently undercount it, so this fails unless -DrebuildOracle=true is set,
+	 * in which case the oracle is rebuilt from the patient file.
+	 *
+	 * @param thePatientFile The staged patient file which the oracle describes, or <code>null</code> if it doesn't describe one
+	 */
+	public static CardinalityOracle readOrCreate(File theOracleFile, File thePatientFile) throws IOException {
+		if (theOracleFile.exists()) {
+			CardinalityOracle retVal = read(theOracleFile);
+			ourLog.info("Loaded existing cardinality oracle with {} patients from {}", retVal.getPatientCount(), theOracleFile);
+			return retVal;
+		}
+		if (thePatientFile == null || !thePatientFile.exists() || thePatientFile.length() == 0) {
+			return new CardinalityOracle();
+		}
+
+		if (!Boolean.parseBoolean(System.getProperty("rebuildOracle", "false"))) {
+			ourLog.error("{} has no cardinality oracle, so the patients already in it would not be counted", thePatientFile);
+			throw new IllegalStateException("No cardinality oracle found for " + thePatientFile + " - Run with -DrebuildOracle=true to rebuild it from the staged patients, or remove the staged patient file");
+		}
+		ourLog.warn("{} has no cardinality oracle, rebuilding it from the staged patients", thePatientFile);
+		return rebuild(thePatientFile);
+	}
+
+	/**
+	 * Creates an oracle describing every patient in a staged patient file
+	 */
+	public static CardinalityOracle rebuild(File thePatientFile) throws IOException {
+		CardinalityOracle retVal = new CardinalityOracle();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(thePatientFile)), StandardCharsets.UTF_8))) {
+			String nextLine;
+			while ((nextLine = reader.readLine()) != null) {
+				if (isNotBlank(nextLine)) {
+					retVal.recordBundle(ourCtx.newJsonParser().parseResource(Bundle.class, nextLine));
+				}
+			}
+		}
+		ourLog.info("Rebuilt cardinality oracle with {} patients from {}", retVal.getPatientCount(), thePatientFile);
+		return retVal;
+	}
+
+	/**
+	 * @return The oracle file for a staged patient file, e.g. <code>patient-files.oracle.gz</code> for <code>patient-files.ndjson.gz</code>
+	 */
+	public static File getOracleFile(String thePatientFile) {
+		return new File(Step1_FileStager.STAGED_SYNTHEA_FILES, thePatientFile.replace(".ndjson.gz", "") + ".oracle.gz");
+	}
+
+}
@@ -0,0 +1,395 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of non-negative ints, laid out like a Roaring bitmap: values are grouped
+ * into chunks of 65536 by their high 16 bits, and each chunk is stored either as a sorted
+ * <code>char[]</code> (when it holds up to 4096 values) or as a 8 KB bitset (when it holds more).
+ * A tag carried by 1% of a million patients takes about 20 KB rather than the 4 MB of an
+ * <code>int[]</code>, and a tag carried by 20% takes at most 8 KB per chunk.
+ * <p>
+ * Not thread safe.
+ * </p>
+ */
+public class CompactBitmap {
+	private static final int ARRAY_CONTAINER_MAX_SIZE = 4096;
+	private static final int BITMAP_CONTAINER_WORDS = 1024;
+
+	private char[] myKeys = new char[4];
+	private Container[] myContainers = new Container[4];
+	private int myContainerCount;
+
+	public void add(int theValue) {
+		char key = (char) (theValue >>> 16);
+		int idx = Arrays.binarySearch(myKeys, 0, myContainerCount, key);
+		if (idx >= 0) {
+			myContainers[idx] = myContainers[idx].add((char) theValue);
+		} else {
+			insertContainer(-idx - 1, key, new ArrayContainer().add((char) theValue));
+		}
+	}
+
+	public boolean contains(int theValue) {
+		int idx = Arrays.binarySearch(myKeys, 0, myContainerCount, (char) (theValue >>> 16));
+		return idx >= 0 && myContainers[idx].contains((char) theValue);
+	}
+
+	public long getCardinality() {
+		long retVal = 0;
+		for (int i = 0; i < myContainerCount; i++) {
+			retVal += myContainers[i].getCardinality();
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return The approximate number of bytes used by the values
+	 */
+	public long getSizeInBytes() {
+		long retVal = myContainerCount * 2L;
+		for (int i = 0; i < myContainerCount; i++) {
+			retVal += myContainers[i].getSizeInBytes();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Calls the consumer with every value, in ascending order
+	 */
+	public void forEach(IntConsumer theConsumer) {
+		for (int i = 0; i < myContainerCount; i++) {
+			myContainers[i].forEach(myKeys[i] << 16, theConsumer);
+		}
+	}
+
+	/**
+	 * @return A new bitmap holding the values in either bitmap
+	 */
+	public static CompactBitmap or(CompactBitmap theLeft, CompactBitmap theRight) {
+		CompactBitmap retVal = new CompactBitmap();
+		int left = 0;
+		int right = 0;
+		while (left < theLeft.myContainerCount || right < theRight.myContainerCount) {
+			if (right == theRight.myContainerCount || (left < theLeft.myContainerCount && theLeft.myKeys[left] < theRight.myKeys[right])) {
+				retVal.appendContainer(theLeft.myKeys[left], theLeft.myContainers[left].copy());
+				left++;
+			} else if (left == theLeft.myContainerCount || theRight.myKeys[right] < theLeft.myKeys[left]) {
+				retVal.appendContainer(theRight.myKeys[right], theRight.myContainers[right].copy());
+				right++;
+			} else {
+				retVal.appendContainer(theLeft.myKeys[left], theLeft.myContainers[left].or(theRight.myContainers[right]));
+				left++;
+				right++;
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return A new bitmap holding the values in both bitmaps
+	 */
+	public static CompactBitmap and(CompactBitmap theLeft, CompactBitmap theRight) {
+		CompactBitmap retVal = new CompactBitmap();
+		int left = 0;
+		int right = 0;
+		while (left < theLeft.myContainerCount && right < theRight.myContainerCount) {
+			if (theLeft.myKeys[left] < theRight.myKeys[right]) {
+				left++;
+			} else if (theRight.myKeys[right] < theLeft.myKeys[left]) {
+				right++;
+			} else {
+				Container container = theLeft.myContainers[left].and(theRight.myContainers[right]);
+				if (container.getCardinality() > 0) {
+					retVal.appendContainer(theLeft.myKeys[left], container);
+				}
+				left++;
+				right++;
+			}
+		}
+		return retVal;
+	}
+
+	public void writeTo(DataOutput theOutput) throws IOException {
+		theOutput.writeInt(myContainerCount);
+		for (int i = 0; i < myContainerCount; i++) {
+			theOutput.writeChar(myKeys[i]);
+			myContainers[i].writeTo(theOutput);
+		}
+	}
+
+	public static CompactBitmap readFrom(DataInput theInput) throws IOException {
+		CompactBitmap retVal = new CompactBitmap();
+		int containerCount = theInput.readInt();
+		for (int i = 0; i < containerCount; i++) {
+			char key = theInput.readChar();
+			retVal.appendContainer(key, Container.readFrom(theInput));
+		}
+		return retVal;
+	}
+
+	private void insertContainer(int theIndex, char theKey, Container theContainer) {
+		if (myContainerCount == myKeys.length) {
+			myKeys = Arrays.copyOf(myKeys, myKeys.length * 2);
+			myContainers = Arrays.copyOf(myContainers, myContainers.length * 2);
+		}
+		System.arraycopy(myKeys, theIndex, myKeys, theIndex + 1, myContainerCount - theIndex);
+		System.arraycopy(myContainers, theIndex, myContainers, theIndex + 1, myContainerCount - theIndex);
+		myKeys[theIndex] = theKey;
+		myContainers[theIndex] = theContainer;
+		myContainerCount++;
+	}
+
+	private void appendContainer(char theKey, Container theContainer) {
+		insertContainer(myContainerCount, theKey, theContainer);
+	}
+
+	private abstract static class Container {
+
+		/**
+		 * @return The container holding the new value, which may be a different container if this one had to be converted
+		 */
+		abstract Container add(char theValue);
+
+		abstract boolean contains(char theValue);
+
+		abstract int getCardinality();
+
+		abstract int getSizeInBytes();
+
+		abstract void forEach(int theHighBits, IntConsumer theConsumer);
+
+		abstract Container copy();
+
+		abstract void writeTo(DataOutput theOutput) throws IOException;
+
+		Container or(Container theOther) {
+			BitmapContainer retVal = toBitmapContainer();
+			theOther.forEach(0, t -> retVal.add((char) t));
+			return retVal.optimize();
+		}
+
+		Container and(Container theOther) {
+			// Probe the smaller side against the larger one
+			Container smaller = getCardinality() <= theOther.getCardinality() ? this : theOther;
+			Container larger = smaller == this ? theOther : this;
+			ArrayContainer arrayRetVal = new ArrayContainer();
+			BitmapContainer[] bitmapRetVal = new BitmapContainer[1];
+			smaller.forEach(0, t -> {
+				if (larger.contains((char) t)) {
+					if (bitmapRetVal[0] != null) {
+						bitmapRetVal[0].add((char) t);
+					} else if (arrayRetVal.add((char) t) instanceof BitmapContainer bitmap) {
+						bitmapRetVal[0] = bitmap;
+					}
+				}
+			});
+			return bitmapRetVal[0] != null ? bitmapRetVal[0] : arrayRetVal;
+		}
+
+		BitmapContainer toBitmapContainer() {
+			BitmapContainer retVal = new BitmapContainer();
+			forEach(0, t -> retVal.add((char) t));
+			return retVal;
+		}
+
+		static Container readFrom(DataInput theInput) throws IOException {
+			boolean isBitmap = theInput.readBoolean();
+			if (isBitmap) {
+				BitmapContainer retVal = new BitmapContainer();
+				for (int i = 0; i < BITMAP_CONTAINER_WORDS; i++) {
+					retVal.myWords[i] = theInput.readLong();
+					retVal.myCardinality += Long.bitCount(retVal.myWords[i]);
+				}
+				return retVal;
+			}
+			ArrayContainer retVal = new ArrayContainer();
+			retVal.myCardinality = theInput.readUnsignedShort() + 1;
+			retVal.myValues = new char[retVal.myCardinality];
+			for (int i = 0; i < retVal.myCardinality; i++) {
+				retVal.myValues[i] = theInput.readChar();
+			}
+			return retVal;
+		}
+	}
+
+	private static class ArrayContainer extends Container {
+		private char[] myValues = new char[4];
+		private int myCardinality;
+
+		@Override
+		Container add(char theValue) {
+			int idx = Arrays.binarySearch(myValues, 0, myCardinality, theValue);
+			if (idx >= 0) {
+				return this;
+			}
+			if (myCardinality == ARRAY_CONTAINER_MAX_SIZE) {
+				return toBitmapContainer().add(theValue);
+			}
+			if (myCardinality == myValues.length) {
+				myValues = Arrays.copyOf(myValues, Math.min(myValues.length * 2, ARRAY_CONTAINER_MAX_SIZE));
+			}
+			int insertAt = -idx - 1;
+			System.arraycopy(myValues, insertAt, myValues, insertAt + 1, myCardinality - insertAt);
+			myValues[insertAt] = theValue;
+			myCardinality++;
+			return this;
+		}
+
+		@Override
+		boolean contains(char theValue) {
+			return Arrays.binarySearch(myValues, 0, myCardinality, theValue) >= 0;
+		}
+
+		@Override
+		int getCardinality() {
+			return myCardinality;
+		}
+
+		@Override
+		int getSizeInBytes() {
+			return myValues.length * 2;
+		}
+
+		@Override
+		void forEach(int theHighBits, IntConsumer theConsumer) {
+			for (int i = 0; i < myCardinality; i++) {
+				theConsumer.accept(theHighBits | myValues[i]);
+			}
+		}
+
+		@Override
+		Container copy() {
+			ArrayContainer retVal = new ArrayContainer();
+			retVal.myValues = Arrays.copyOf(myValues, myCardinality);
+			retVal.myCardinality = myCardinality;
+			return retVal;
+		}
+
+		@Override
+		Container or(Container theOther) {
+			if (theOther instanceof ArrayContainer other && myCardinality + other.myCardinality <= ARRAY_CONTAINER_MAX_SIZE) {
+				// Merge the two sorted arrays
+				ArrayContainer retVal = new ArrayContainer();
+				retVal.myValues = new char[myCardinality + other.myCardinality];
+				int left = 0;
+				int right = 0;
+				while (left < myCardinality || right < other.myCardinality) {
+					char next;
+					if (right == other.myCardinality || (left < myCardinality && myValues[left] < other.myValues[right])) {
+						next = myValues[left++];
+					} else if (left == myCardinality || other.myValues[right] < myValues[left]) {
+						next = other.myValues[right++];
+					} else {
+						next = myValues[left++];
+						right++;
+					}
+					retVal.myValues[retVal.myCardinality++] = next;
+				}
+				return retVal;
+			}
+			return super.or(theOther);
+		}
+
+		@Override
+		void writeTo(DataOutput theOutput) throws IOException {
+			theOutput.writeBoolean(false);
+			// Containers are never empty, so store the cardinality minus one to fit 4096 in an unsigned short
+			theOutput.writeShort(myCardinality - 1);
+			for (int i = 0; i < myCardinality; i++) {
+				theOutput.writeChar(myValues[i]);
+			}
+		}
+	}
+
+	private static class BitmapContainer extends Container {
+		private final long[] myWords = new long[BITMAP_CONTAINER_WORDS];
+		private int myCardinality;
+
+		@Override
+		Container add(char theValue) {
+			long before = myWords[theValue >>> 6];
+			long after = before | (1L << theValue);
+			if (before != after) {
+				myWords[theValue >>> 6] = after;
+				myCardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(char theValue) {
+			return (myWords[theValue >>> 6] & (1L << theValue)) != 0;
+		}
+
+		@Override
+		int getCardinality() {
+			return myCardinality;
+		}
+
+		@Override
+		int getSizeInBytes() {
+			return BITMAP_CONTAINER_WORDS * 8;
+		}
+
+		@Override
+		void forEach(int theHighBits, IntConsumer theConsumer) {
+			for (int i = 0; i < BITMAP_CONTAINER_WORDS; i++) {
+				long word = myWords[i];
+				while (word != 0) {
+					theConsumer.accept(theHighBits | (i << 6) | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+		}
+
+		@Override
+		Container copy() {
+			BitmapContainer retVal = new BitmapContainer();
+			System.arraycopy(myWords, 0, retVal.myWords, 0, BITMAP_CONTAINER_WORDS);
+			retVal.myCardinality = myCardinality;
+			return retVal;
+		}
+
+		@Override
+		Container or(Container theOther) {
+			if (theOther instanceof BitmapContainer other) {
+				BitmapContainer retVal = new BitmapContainer();
+				for (int i = 0; i < BITMAP_CONTAINER_WORDS; i++) {
+					retVal.myWords[i] = myWords[i] | other.myWords[i];
+					retVal.myCardinality += Long.bitCount(retVal.myWords[i]);
+				}
+				return retVal;
+			}
+			return super.or(theOther);
+		}
+
+		@Override
+		BitmapContainer toBitmapContainer() {
+			return (BitmapContainer) copy();
+		}
+
+		@Override
+		void writeTo(DataOutput theOutput) throws IOException {
+			theOutput.writeBoolean(true);
+			for (long next : myWords) {
+				theOutput.writeLong(next);
+			}
+		}
+
+		/**
+		 * @return An array container if this container is small enough to be stored as one
+		 */
+		Container optimize() {
+			if (myCardinality > ARRAY_CONTAINER_MAX_SIZE) {
+				return this;
+			}
+			ArrayContainer retVal = new ArrayContainer();
+			retVal.myValues = new char[myCardinality];
+			forEach(0, t -> retVal.myValues[retVal.myCardinality++] = (char) t);
+			return retVal;
+		}
+	}
+}
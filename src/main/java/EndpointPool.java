@@ -0,0 +1,257 @@
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.SlidingTimeWindowArrayReservoir;
+import com.codahale.metrics.Snapshot;
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Spreads requests across one or more FHIR server nodes, e.g.
+ * -Dendpoints=http://node1:8000,http://node2:8000 (if not set, the single -Dendpoint is used).
+ * <p>
+ * Requests are routed using -Drouting:
+ * <ul>
+ *    <li><code>hash</code> (the default) - Requests with a routing key (e.g. the patient ID) always go to the same node, using a consistent hash ring so that ejecting a node only moves that node's keys. Requests without a key are sent round-robin.</li>
+ *    <li><code>round_robin</code> - Every request goes to the next node</li>
+ * </ul>
+ * Each node accepts at most -DmaxInFlightPerNode concurrent requests, and callers block
+ * while their node is full. By default this is the caller's thread count divided between the
+ * nodes, so that one slow node can't tie up every caller thread. A node which fails
+ * -DejectAfterFailures requests in a row is ejected for -DejectSeconds, during which its
+ * requests go to the next node on the ring.
+ * </p>
+ * <p>
+ * The routing and ejection behaviour can be checked using {@link EndpointPoolSelfCheck}.
+ * </p>
+ */
+public class EndpointPool {
+	private static final Logger ourLog = LoggerFactory.getLogger(EndpointPool.class);
+	private static final int VIRTUAL_NODES_PER_NODE = 100;
+
+	private final RoutingModeEnum myRoutingMode;
+	private final int myMaxInFlightPerNode;
+	private final List<Node> myNodes = new ArrayList<>();
+	private final TreeMap<Integer, Node> myRing = new TreeMap<>();
+	private final AtomicInteger myRoundRobinCounter = new AtomicInteger(0);
+	private final long myStartNanos = System.nanoTime();
+
+	enum RoutingModeEnum {
+		HASH,
+		ROUND_ROBIN
+	}
+
+	/**
+	 * Creates a pool configured using -Drouting, -DmaxInFlightPerNode, -DejectAfterFailures and -DejectSeconds
+	 *
+	 * @param theBaseUrls      The base URL of each node
+	 * @param theClientFactory Creates the client for a base URL. Credentials are added by the pool.
+	 * @param theCallerThreads The number of threads which will send requests through the pool, used for the default -DmaxInFlightPerNode
+	 */
+	public EndpointPool(List<String> theBaseUrls, Function<String, IGenericClient> theClientFactory, int theCallerThreads) {
+		this(
+			theBaseUrls,
+			theClientFactory,
+			RoutingModeEnum.valueOf(System.getProperty("routing", RoutingModeEnum.HASH.name()).toUpperCase()),
+			Integer.parseInt(System.getProperty("maxInFlightPerNode", Integer.toString(getDefaultMaxInFlightPerNode(theCallerThreads, theBaseUrls.size())))),
+			Integer.parseInt(System.getProperty("ejectAfterFailures", "3")),
+			TimeUnit.SECONDS.toMillis(Integer.parseInt(System.getProperty("ejectSeconds", "30"))));
+	}
+
+	EndpointPool(List<String> theBaseUrls, Function<String, IGenericClient> theClientFactory, RoutingModeEnum theRoutingMode, int theMaxInFlightPerNode, int theEjectAfterFailures, long theEjectMillis) {
+		Validate.notEmpty(theBaseUrls, "No endpoints specified");
+		Validate.isTrue(theMaxInFlightPerNode > 0, "maxInFlightPerNode must be positive");
+		myRoutingMode = theRoutingMode;
+		myMaxInFlightPerNode = theMaxInFlightPerNode;
+		for (String nextBaseUrl : theBaseUrls) {
+			IGenericClient client = theClientFactory.apply(nextBaseUrl);
+			client.registerInterceptor(new BasicAuthInterceptor(PlaygroundConstants.FHIR_ENDPOINT_CREDENTIALS));
+			Node node = new Node(nextBaseUrl, client, theMaxInFlightPerNode, theEjectAfterFailures, theEjectMillis);
+			myNodes.add(node);
+			for (int i = 0; i < VIRTUAL_NODES_PER_NODE; i++) {
+				myRing.put(hash(nextBaseUrl + "#" + i), node);
+			}
+		}
+		ourLog.info("Using {} endpoint(s) with {} routing and at most {} requests in flight per endpoint: {}", myNodes.size(), myRoutingMode.name().toLowerCase(), myMaxInFlightPerNode, theBaseUrls);
+	}
+
+	/**
+	 * Splits the caller's threads between the nodes (rounding up), so that the limit actually applies
+	 * when there is more than one node. With a single node the limit is the thread count, i.e. no limit.
+	 */
+	static int getDefaultMaxInFlightPerNode(int theCallerThreads, int theNodeCount) {
+		return Math.max(1, (theCallerThreads + theNodeCount - 1) / theNodeCount);
+	}
+
+	/**
+	 * Runs an action against a node, blocking while that node already has the maximum number of requests in flight
+	 *
+	 * @param theRoutingKey The key used to choose the node when hash routing, or <code>null</code> to use any node
+	 */
+	public <T> T execute(String theRoutingKey, Function<IGenericClient, T> theAction) {
+		Node node = selectNode(theRoutingKey);
+		node.myInFlight.acquireUninterruptibly();
+		long start = System.nanoTime();
+		try {
+			T retVal = theAction.apply(node.myClient);
+			node.recordSuccess(System.nanoTime() - start);
+			return retVal;
+		} catch (RuntimeException e) {
+			node.recordFailure();
+			throw e;
+		} finally {
+			node.myInFlight.release();
+		}
+	}
+
+	/**
+	 * @return A client for one of the healthy nodes, for requests which don't need to be spread or measured
+	 */
+	public IGenericClient getAnyClient() {
+		return selectNode(null).myClient;
+	}
+
+	public List<Node> getNodes() {
+		return Collections.unmodifiableList(myNodes);
+	}
+
+	/**
+	 * Logs the throughput, latency and health of each node since the pool was created
+	 */
+	public void logReport() {
+		double elapsedSeconds = (System.nanoTime() - myStartNanos) / 1000000000.0;
+		for (Node next : myNodes) {
+			Snapshot latency = next.myLatencyMillis.getSnapshot();
+			ourLog.info("Endpoint {} - {} requests ({}/sec), {} failed, {} in flight - Latency ms p50={} p95={} p99={}{}",
+				next.myBaseUrl,
+				next.myRequestCount.get(),
+				String.format("%.1f", next.myRequestCount.get() / elapsedSeconds),
+				next.myFailureCount.get(),
+				myMaxInFlightPerNode - next.myInFlight.availablePermits(),
+				String.format("%.1f", latency.getMedian()),
+				String.format("%.1f", latency.get95thPercentile()),
+				String.format("%.1f", latency.get99thPercentile()),
+				next.isEjected() ? " - EJECTED" : "");
+		}
+	}
+
+	private Node selectNode(String theRoutingKey) {
+		if (myNodes.size() == 1) {
+			return myNodes.get(0);
+		}
+
+		if (myRoutingMode == RoutingModeEnum.HASH && theRoutingKey != null) {
+			// Walk clockwise around the ring from the key's position until a healthy node is found
+			Integer start = myRing.ceilingKey(hash(theRoutingKey));
+			if (start == null) {
+				start = myRing.firstKey();
+			}
+			for (Map.Entry<Integer, Node> next : myRing.tailMap(start, true).entrySet()) {
+				if (!next.getValue().isEjected()) {
+					return next.getValue();
+				}
+			}
+			for (Map.Entry<Integer, Node> next : myRing.headMap(start, false).entrySet()) {
+				if (!next.getValue().isEjected()) {
+					return next.getValue();
+				}
+			}
+			return myRing.get(start);
+		}
+
+		int offset = Math.floorMod(myRoundRobinCounter.getAndIncrement(), myNodes.size());
+		for (int i = 0; i < myNodes.size(); i++) {
+			Node next = myNodes.get((offset + i) % myNodes.size());
+			if (!next.isEjected()) {
+				return next;
+			}
+		}
+
+		// Every node is ejected, so keep trying the one we would have used anyway
+		return myNodes.get(offset);
+	}
+
+	private static int hash(String theKey) {
+		return Hashing.murmur3_32().hashString(theKey, StandardCharsets.UTF_8).asInt();
+	}
+
+	/**
+	 * @return The endpoints from -Dendpoints, or the single -Dendpoint if that isn't set
+	 */
+	public static List<String> getConfiguredEndpoints() {
+		List<String> retVal = new ArrayList<>();
+		for (String next : System.getProperty("endpoints", PlaygroundConstants.FHIR_ENDPOINT_BASE_URL).split(",")) {
+			if (!next.isBlank()) {
+				retVal.add(next.trim());
+			}
+		}
+		return retVal;
+	}
+
+	public static class Node {
+		private final String myBaseUrl;
+		private final IGenericClient myClient;
+		private final Semaphore myInFlight;
+		private final Histogram myLatencyMillis = new Histogram(new SlidingTimeWindowArrayReservoir(60, TimeUnit.SECONDS));
+		private final AtomicLong myRequestCount = new AtomicLong(0);
+		private final AtomicLong myFailureCount = new AtomicLong(0);
+		private final AtomicInteger myConsecutiveFailures = new AtomicInteger(0);
+		private final int myEjectAfterFailures;
+		private final long myEjectMillis;
+		private volatile long myEjectedUntilNanos = System.nanoTime();
+
+		private Node(String theBaseUrl, IGenericClient theClient, int theMaxInFlight, int theEjectAfterFailures, long theEjectMillis) {
+			myBaseUrl = theBaseUrl;
+			myClient = theClient;
+			myInFlight = new Semaphore(theMaxInFlight);
+			myEjectAfterFailures = theEjectAfterFailures;
+			myEjectMillis = theEjectMillis;
+		}
+
+		public String getBaseUrl() {
+			return myBaseUrl;
+		}
+
+		public long getRequestCount() {
+			return myRequestCount.get();
+		}
+
+		public Histogram getLatencyMillis() {
+			return myLatencyMillis;
+		}
+
+		boolean isEjected() {
+			return System.nanoTime() - myEjectedUntilNanos < 0;
+		}
+
+		private void recordSuccess(long theElapsedNanos) {
+			myRequestCount.incrementAndGet();
+			myLatencyMillis.update(theElapsedNanos / 1000000);
+			myConsecutiveFailures.set(0);
+		}
+
+		private void recordFailure() {
+			myRequestCount.incrementAndGet();
+			myFailureCount.incrementAndGet();
+			if (myConsecutiveFailures.incrementAndGet() >= myEjectAfterFailures && !isEjected()) {
+				ourLog.warn("Ejecting endpoint {} for {} ms after {} consecutive failures", myBaseUrl, myEjectMillis, myConsecutiveFailures.get());
+				myEjectedUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(myEjectMillis);
+				myConsecutiveFailures.set(0);
+			}
+		}
+	}
+}
@@ -0,0 +1,202 @@
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Checks the routing and ejection behaviour of {@link EndpointPool} without any servers: the
+ * pool is given clients for unresolvable URLs, and the actions passed to it only look at which
+ * client they were given (or fail on purpose). Throws if any check fails.
+ */
+public class EndpointPoolSelfCheck {
+	private static final Logger ourLog = LoggerFactory.getLogger(EndpointPoolSelfCheck.class);
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+	private static final List<String> NODES = List.of("http://node0.invalid", "http://node1.invalid", "http://node2.invalid");
+	private static final int KEY_COUNT = 3000;
+	private static final long EJECT_MILLIS = 1000;
+
+	public static void main(String[] args) throws Exception {
+		checkHashRoutingIsStableAndEven();
+		checkEjectionAndReadmission();
+		checkRoundRobin();
+		checkAllEjected();
+		checkInFlightLimit();
+		checkDefaultInFlightLimit();
+		ourLog.info("All EndpointPool checks passed");
+	}
+
+	private static void checkHashRoutingIsStableAndEven() {
+		EndpointPool pool = newPool(EndpointPool.RoutingModeEnum.HASH, 10);
+		Map<String, String> keyToNode = route(pool);
+		Validate.isTrue(keyToNode.equals(route(pool)), "The same keys were routed differently twice");
+		Validate.isTrue(keyToNode.equals(route(newPool(EndpointPool.RoutingModeEnum.HASH, 10))), "The same keys were routed differently by two pools");
+
+		Map<String, Integer> nodeToCount = countPerNode(keyToNode);
+		ourLog.info("Hash routing of {} keys: {}", KEY_COUNT, nodeToCount);
+		for (String nextNode : NODES) {
+			int count = nodeToCount.getOrDefault(nextNode, 0);
+			Validate.isTrue(count > KEY_COUNT / NODES.size() / 2, "Node %s only received %d of %d keys", nextNode, count, KEY_COUNT);
+		}
+	}
+
+	private static void checkEjectionAndReadmission() throws InterruptedException {
+		EndpointPool pool = newPool(EndpointPool.RoutingModeEnum.HASH, 10);
+		Map<String, String> before = route(pool);
+		String ejectedNode = NODES.get(1);
+		String ejectedNodeKey = before.entrySet().stream().filter(t -> t.getValue().equals(ejectedNode)).findFirst().orElseThrow().getKey();
+
+		// Two failures aren't enough to eject, and a success resets the count
+		fail(pool, ejectedNodeKey, 2);
+		pool.execute(ejectedNodeKey, IGenericClient::getServerBase);
+		fail(pool, ejectedNodeKey, 2);
+		Validate.isTrue(route(pool).equals(before), "A node was ejected before it failed 3 requests in a row");
+
+		// Routing the keys again reset the count with successes
+		fail(pool, ejectedNodeKey, 3);
+		Map<String, String> during = route(pool);
+		for (Map.Entry<String, String> next : before.entrySet()) {
+			String nodeDuring = during.get(next.getKey());
+			if (next.getValue().equals(ejectedNode)) {
+				Validate.isTrue(!nodeDuring.equals(ejectedNode), "Key %s was routed to ejected node %s", next.getKey(), ejectedNode);
+			} else {
+				Validate.isTrue(nodeDuring.equals(next.getValue()), "Key %s moved from healthy node %s to %s", next.getKey(), next.getValue(), nodeDuring);
+			}
+		}
+		Validate.isTrue(countPerNode(during).size() == NODES.size() - 1, "The ejected node's keys weren't spread over the other nodes");
+
+		Thread.sleep(EJECT_MILLIS * 2);
+		Validate.isTrue(route(pool).equals(before), "Keys did not return to their node after it was readmitted");
+	}
+
+	private static void checkRoundRobin() {
+		for (EndpointPool.RoutingModeEnum nextMode : EndpointPool.RoutingModeEnum.values()) {
+			EndpointPool pool = newPool(nextMode, 10);
+			// Requests without a routing key are always spread round-robin, as are keyed requests in ROUND_ROBIN mode
+			String key = nextMode == EndpointPool.RoutingModeEnum.ROUND_ROBIN ? "patient-1" : null;
+			List<String> nodes = new ArrayList<>();
+			for (int i = 0; i < NODES.size() * 2; i++) {
+				nodes.add(pool.execute(key, IGenericClient::getServerBase));
+			}
+			for (int i = 0; i < NODES.size(); i++) {
+				Validate.isTrue(nodes.get(i).equals(nodes.get(i + NODES.size())), "Round-robin order was not repeated in %s mode: %s", nextMode, nodes);
+			}
+			Validate.isTrue(nodes.stream().distinct().count() == NODES.size(), "Round-robin didn't use every node in %s mode: %s", nextMode, nodes);
+		}
+	}
+
+	private static void checkAllEjected() {
+		EndpointPool pool = newPool(EndpointPool.RoutingModeEnum.HASH, 10);
+		for (String nextNode : NODES) {
+			String key = route(pool).entrySet().stream().filter(t -> t.getValue().equals(nextNode)).findFirst().orElseThrow().getKey();
+			fail(pool, key, 3);
+		}
+		for (EndpointPool.Node next : pool.getNodes()) {
+			Validate.isTrue(next.isEjected(), "Node %s was not ejected", next.getBaseUrl());
+		}
+
+		// With nowhere better to go, requests still go to the node they would normally use
+		EndpointPool healthyPool = newPool(EndpointPool.RoutingModeEnum.HASH, 10);
+		for (int i = 0; i < 100; i++) {
+			String key = "patient-" + i;
+			String expected = healthyPool.execute(key, IGenericClient::getServerBase);
+			Validate.isTrue(expected.equals(pool.execute(key, IGenericClient::getServerBase)), "Key %s was not routed to its own node while every node was ejected", key);
+		}
+		Validate.notNull(pool.getAnyClient());
+	}
+
+	private static void checkInFlightLimit() throws Exception {
+		int maxInFlight = 2;
+		EndpointPool pool = newPool(EndpointPool.RoutingModeEnum.HASH, maxInFlight);
+		Map<String, AtomicInteger> nodeToInFlight = new HashMap<>();
+		Map<String, AtomicInteger> nodeToMaxInFlight = new HashMap<>();
+		for (String nextNode : NODES) {
+			nodeToInFlight.put(nextNode, new AtomicInteger());
+			nodeToMaxInFlight.put(nextNode, new AtomicInteger());
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(20);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				String key = "patient-" + (i % 10);
+				futures.add(executor.submit(() -> pool.execute(key, client -> {
+					String node = client.getServerBase();
+					int inFlight = nodeToInFlight.get(node).incrementAndGet();
+					nodeToMaxInFlight.get(node).accumulateAndGet(inFlight, Math::max);
+					try {
+						Thread.sleep(2);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					nodeToInFlight.get(node).decrementAndGet();
+					return node;
+				})));
+			}
+			for (Future<?> next : futures) {
+				next.get();
+			}
+		} finally {
+			executor.shutdown();
+			Validate.isTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+		}
+
+		ourLog.info("Most requests in flight per node with a limit of {}: {}", maxInFlight, nodeToMaxInFlight);
+		for (Map.Entry<String, AtomicInteger> next : nodeToMaxInFlight.entrySet()) {
+			Validate.isTrue(next.getValue().get() <= maxInFlight, "Node %s had %d requests in flight", next.getKey(), next.getValue().get());
+		}
+	}
+
+	private static void checkDefaultInFlightLimit() {
+		Validate.isTrue(EndpointPool.getDefaultMaxInFlightPerNode(10, 1) == 10);
+		Validate.isTrue(EndpointPool.getDefaultMaxInFlightPerNode(10, 3) == 4);
+		Validate.isTrue(EndpointPool.getDefaultMaxInFlightPerNode(1, 3) == 1);
+	}
+
+	private static EndpointPool newPool(EndpointPool.RoutingModeEnum theRoutingMode, int theMaxInFlightPerNode) {
+		Function<String, IGenericClient> clientFactory = ourCtx::newRestfulGenericClient;
+		return new EndpointPool(NODES, clientFactory, theRoutingMode, theMaxInFlightPerNode, 3, EJECT_MILLIS);
+	}
+
+	/**
+	 * @return The node which each of the check keys is routed to
+	 */
+	private static Map<String, String> route(EndpointPool thePool) {
+		Map<String, String> retVal = new HashMap<>();
+		for (int i = 0; i < KEY_COUNT; i++) {
+			String key = "urn:uuid:patient-" + i;
+			retVal.put(key, thePool.execute(key, IGenericClient::getServerBase));
+		}
+		return retVal;
+	}
+
+	private static Map<String, Integer> countPerNode(Map<String, String> theKeyToNode) {
+		Map<String, Integer> retVal = new HashMap<>();
+		theKeyToNode.values().forEach(t -> retVal.merge(t, 1, Integer::sum));
+		return retVal;
+	}
+
+	private static void fail(EndpointPool thePool, String theKey, int theTimes) {
+		for (int i = 0; i < theTimes; i++) {
+			try {
+				thePool.execute(theKey, client -> {
+					throw new IllegalStateException("Simulated failure");
+				});
+			} catch (IllegalStateException e) {
+				// expected
+			}
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+import ca.uhn.fhir.jpa.api.config.DaoConfig;
+import ca.uhn.fhir.jpa.binstore.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.binstore.MemoryBinaryStorageSvcImpl;
+import ca.uhn.fhir.jpa.config.BaseJavaConfigR4;
+import ca.uhn.fhir.jpa.model.config.PartitionSettings;
+import ca.uhn.fhir.jpa.model.entity.ModelConfig;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.hibernate.dialect.H2Dialect;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.transaction.annotation.EnableTransactionManagement;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.util.Properties;
+
+/**
+ * Spring configuration for the in-process HAPI FHIR JPA server started by
+ * {@link Step0_LocalServer}. Data is stored in an embedded H2 database, either in
+ * memory (the default) or in a file if -DdatabaseFile is set.
+ */
+@Configuration
+@EnableTransactionManagement
+public class LocalJpaServerConfig extends BaseJavaConfigR4 {
+
+	@Bean
+	public DaoConfig daoConfig() {
+		DaoConfig retVal = new DaoConfig();
+		retVal.setAllowMultipleDelete(true);
+		retVal.setAutoCreatePlaceholderReferenceTargets(true);
+		return retVal;
+	}
+
+	@Bean
+	public ModelConfig modelConfig() {
+		return daoConfig().getModelConfig();
+	}
+
+	@Bean
+	public PartitionSettings partitionSettings() {
+		return new PartitionSettings();
+	}
+
+	@Bean
+	public IBinaryStorageSvc binaryStorage() {
+		return new MemoryBinaryStorageSvcImpl();
+	}
+
+	@Bean(destroyMethod = "close")
+	public DataSource dataSource() {
+		String databaseFile = System.getProperty("databaseFile");
+		String url;
+		if (databaseFile != null) {
+			url = "jdbc:h2:file:" + databaseFile;
+		} else {
+			url = "jdbc:h2:mem:playground;DB_CLOSE_DELAY=-1";
+		}
+
+		BasicDataSource retVal = new BasicDataSource();
+		retVal.setDriverClassName("org.h2.Driver");
+		retVal.setUrl(url);
+		retVal.setUsername("SA");
+		retVal.setPassword("SA");
+		retVal.setMaxTotal(20);
+		return retVal;
+	}
+
+	@Override
+	@Bean
+	public LocalContainerEntityManagerFactoryBean entityManagerFactory() {
+		LocalContainerEntityManagerFactoryBean retVal = super.entityManagerFactory();
+		retVal.setPersistenceUnitName("PU_PlaygroundR4");
+		retVal.setDataSource(dataSource());
+		retVal.setJpaProperties(jpaProperties());
+		return retVal;
+	}
+
+	@Bean
+	public JpaTransactionManager transactionManager(EntityManagerFactory theEntityManagerFactory) {
+		JpaTransactionManager retVal = new JpaTransactionManager();
+		retVal.setEntityManagerFactory(theEntityManagerFactory);
+		return retVal;
+	}
+
+	private Properties jpaProperties() {
+		Properties retVal = new Properties();
+		retVal.put("hibernate.dialect", H2Dialect.class.getName());
+		retVal.put("hibernate.hbm2ddl.auto", "update");
+		retVal.put("hibernate.jdbc.batch_size", "20");
+		retVal.put("hibernate.format_sql", "false");
+		retVal.put("hibernate.show_sql", "false");
+		retVal.put("hibernate.search.enabled", "false");
+		return retVal;
+	}
+
+}
@@ -0,0 +1,71 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A minimal HTTP server which serves the <code>.ndjson</code> files in a single directory,
+ * so that a FHIR server can fetch them during a bulk <code>$import</code>.
+ */
+public class NdjsonFileServer {
+	private static final Logger ourLog = LoggerFactory.getLogger(NdjsonFileServer.class);
+	private static final String CONTENT_TYPE = "application/fhir+ndjson";
+
+	private final int myPort;
+	private final File myDirectory;
+	private HttpServer myServer;
+	private ExecutorService myExecutor;
+
+	/**
+	 * @param thePort      The port to listen on
+	 * @param theDirectory The directory containing the files to serve
+	 */
+	public NdjsonFileServer(int thePort, File theDirectory) {
+		myPort = thePort;
+		myDirectory = theDirectory;
+	}
+
+	public void start() throws IOException {
+		myExecutor = Executors.newFixedThreadPool(16);
+		myServer = HttpServer.create(new InetSocketAddress(myPort), 100);
+		myServer.setExecutor(myExecutor);
+		myServer.createContext("/", this::handle);
+		myServer.start();
+		ourLog.info("Serving {} on port {}", myDirectory, myPort);
+	}
+
+	public void stop() {
+		myServer.stop(0);
+		// Otherwise the idle worker threads keep the JVM running
+		myExecutor.shutdownNow();
+	}
+
+	private void handle(HttpExchange theExchange) throws IOException {
+		try (theExchange) {
+			String name = theExchange.getRequestURI().getPath().substring(1);
+			File file = new File(myDirectory, name);
+
+			// Only serve plain file names from the directory itself
+			if (!"GET".equals(theExchange.getRequestMethod()) || name.contains("/") || !name.endsWith(".ndjson") || !file.isFile()) {
+				theExchange.sendResponseHeaders(404, -1);
+				return;
+			}
+
+			ourLog.info("Sending {} to {}", name, theExchange.getRemoteAddress());
+			theExchange.getResponseHeaders().add("Content-Type", CONTENT_TYPE);
+			theExchange.sendResponseHeaders(200, file.length());
+			try (OutputStream outputStream = theExchange.getResponseBody()) {
+				Files.copy(file.toPath(), outputStream);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,258 @@
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * A stand-in for a FHIR server which does no work at all: transactions are read and
+ * discarded, and every search returns the same canned page of resources. Benchmarking
+ * against this server measures the ceiling of the client pipeline itself.
+ * <p>
+ * Bulk <code>$import</code> is also supported: the input files are downloaded and their
+ * resources counted in the background, and the status URL reports the counts once done.
+ * </p>
+ */
+public class NullFhirServer {
+	private static final Logger ourLog = LoggerFactory.getLogger(NullFhirServer.class);
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+	private static final String CONTENT_TYPE = "application/fhir+json;charset=utf-8";
+	private static final String IMPORT_STATUS_PATH = "/$import-poll-status/";
+	private static final byte[] TRANSACTION_RESPONSE = "{\"resourceType\":\"Bundle\",\"type\":\"transaction-response\"}".getBytes(StandardCharsets.UTF_8);
+
+	private final int myPort;
+	private final Map<String, byte[]> myResourceTypeToSearchResponse = new HashMap<>();
+	private final byte[] myEmptySearchResponse;
+	private final byte[] myCapabilityStatement;
+	private final Map<String, ImportJob> myImportJobs = new ConcurrentHashMap<>();
+	private final AtomicInteger myImportJobCounter = new AtomicInteger(0);
+	private final ExecutorService myImportExecutor = Executors.newCachedThreadPool();
+	private HttpServer myServer;
+
+	private static class ImportJob {
+		private final Map<String, AtomicLong> myTypeToCount = new ConcurrentHashMap<>();
+		private final List<String> myUrls = new ArrayList<>();
+		private volatile boolean myComplete;
+		private volatile String myError;
+
+		private long getResourceCount() {
+			return myTypeToCount.values().stream().mapToLong(AtomicLong::get).sum();
+		}
+	}
+
+	/**
+	 * @param thePort     The port to listen on
+	 * @param thePageSize The number of resources in each canned search response
+	 */
+	public NullFhirServer(int thePort, int thePageSize) {
+		myPort = thePort;
+
+		myResourceTypeToSearchResponse.put("Patient", newSearchResponse(thePageSize, NullFhirServer::newPatient));
+		myResourceTypeToSearchResponse.put("Encounter", newSearchResponse(thePageSize, NullFhirServer::newEncounter));
+		myResourceTypeToSearchResponse.put("Observation", newSearchResponse(thePageSize, NullFhirServer::newObservation));
+		myEmptySearchResponse = newSearchResponse(0, null);
+
+		CapabilityStatement capabilityStatement = new CapabilityStatement();
+		capabilityStatement.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		capabilityStatement.setKind(CapabilityStatement.CapabilityStatementKind.INSTANCE);
+		capabilityStatement.setFhirVersion(Enumerations.FHIRVersion._4_0_1);
+		capabilityStatement.addFormat("json");
+		myCapabilityStatement = encode(capabilityStatement);
+	}
+
+	public void start() throws IOException {
+		myServer = HttpServer.create(new InetSocketAddress(myPort), 1000);
+		myServer.setExecutor(Executors.newFixedThreadPool(64));
+		myServer.createContext("/", this::handle);
+		myServer.start();
+		ourLog.info("Null FHIR server listening on port {}", myPort);
+	}
+
+	public void stop() {
+		myServer.stop(0);
+		myImportExecutor.shutdownNow();
+	}
+
+	private void handle(HttpExchange theExchange) throws IOException {
+		try (theExchange) {
+			// Always read the full request so that the client pays the full cost of sending it
+			byte[] requestBody = IOUtils.toByteArray(theExchange.getRequestBody());
+
+			String path = theExchange.getRequestURI().getPath();
+			String method = theExchange.getRequestMethod();
+			byte[] response;
+			if ("POST".equals(method) && "/".equals(path)) {
+				response = TRANSACTION_RESPONSE;
+			} else if ("POST".equals(method) && "/$import".equals(path)) {
+				String jobId = startImport(requestBody);
+				theExchange.getResponseHeaders().add("Content-Location", IMPORT_STATUS_PATH + jobId);
+				theExchange.sendResponseHeaders(202, -1);
+				return;
+			} else if ("GET".equals(method) && path.startsWith(IMPORT_STATUS_PATH)) {
+				ImportJob job = myImportJobs.get(path.substring(IMPORT_STATUS_PATH.length()));
+				if (job == null) {
+					theExchange.sendResponseHeaders(404, -1);
+					return;
+				} else if (job.myError != null) {
+					theExchange.sendResponseHeaders(500, -1);
+					return;
+				} else if (!job.myComplete) {
+					theExchange.getResponseHeaders().add("X-Progress", "Counted " + job.getResourceCount() + " resources");
+					theExchange.sendResponseHeaders(202, -1);
+					return;
+				}
+				response = newImportOutcome(job);
+			} else if ("GET".equals(method) && "/metadata".equals(path)) {
+				response = myCapabilityStatement;
+			} else if ("GET".equals(method)) {
+				String resourceType = path.substring(1).split("/")[0];
+				response = myResourceTypeToSearchResponse.getOrDefault(resourceType, myEmptySearchResponse);
+			} else {
+				theExchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			theExchange.getResponseHeaders().add("Content-Type", CONTENT_TYPE);
+			theExchange.sendResponseHeaders(200, response.length);
+			try (OutputStream outputStream = theExchange.getResponseBody()) {
+				outputStream.write(response);
+			}
+		}
+	}
+
+	/**
+	 * Starts downloading the files listed in a <code>$import</code> request
+	 *
+	 * @return The job ID
+	 */
+	private String startImport(byte[] theRequestBody) {
+		Parameters parameters = ourCtx.newJsonParser().parseResource(Parameters.class, new String(theRequestBody, StandardCharsets.UTF_8));
+		ImportJob job = new ImportJob();
+		for (Parameters.ParametersParameterComponent nextParameter : parameters.getParameter()) {
+			if ("input".equals(nextParameter.getName())) {
+				for (Parameters.ParametersParameterComponent nextPart : nextParameter.getPart()) {
+					if ("url".equals(nextPart.getName())) {
+						job.myUrls.add(nextPart.getValue().primitiveValue());
+					}
+				}
+			}
+		}
+
+		String jobId = Integer.toString(myImportJobCounter.incrementAndGet());
+		myImportJobs.put(jobId, job);
+		ourLog.info("Starting import job {} with {} files", jobId, job.myUrls.size());
+		myImportExecutor.submit(() -> {
+			try {
+				for (String nextUrl : job.myUrls) {
+					try (BufferedReader reader = new BufferedReader(new InputStreamReader(new URL(nextUrl).openStream(), StandardCharsets.UTF_8))) {
+						String nextLine;
+						while ((nextLine = reader.readLine()) != null) {
+							if (!nextLine.isBlank()) {
+								String resourceType = ourCtx.newJsonParser().parseResource(nextLine).fhirType();
+								job.myTypeToCount.computeIfAbsent(resourceType, t -> new AtomicLong(0)).incrementAndGet();
+							}
+						}
+					}
+				}
+				job.myComplete = true;
+				ourLog.info("Import job {} counted {} resources", jobId, job.getResourceCount());
+			} catch (Exception e) {
+				ourLog.error("Import job {} failed", jobId, e);
+				job.myError = e.toString();
+			}
+		});
+		return jobId;
+	}
+
+	private static byte[] newImportOutcome(ImportJob theJob) {
+		StringBuilder retVal = new StringBuilder("{\"output\":[");
+		for (var next : new TreeMap<>(theJob.myTypeToCount).entrySet()) {
+			if (retVal.charAt(retVal.length() - 1) != '[') {
+				retVal.append(",");
+			}
+			retVal.append("{\"type\":\"").append(next.getKey()).append("\",\"count\":").append(next.getValue().get()).append("}");
+		}
+		retVal.append("],\"error\":[]}");
+		return retVal.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] newSearchResponse(int thePageSize, IntFunction<Resource> theResourceFactory) {
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.SEARCHSET);
+		for (int i = 0; i < thePageSize; i++) {
+			Resource resource = theResourceFactory.apply(i);
+			List<String> tags = Arrays.asList(PlaygroundConstants.TAG_20PCT.get(i % 10), PlaygroundConstants.TAG_1PCT.get(i % 10));
+			for (TagModeEnum nextMode : TagModeEnum.values()) {
+				nextMode.addTags(resource.getMeta(), tags);
+			}
+			bundle.addEntry().setResource(resource).getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+		}
+		return encode(bundle);
+	}
+
+	private static Resource newPatient(int theIndex) {
+		Patient patient = new Patient();
+		patient.setId("Patient/" + theIndex);
+		patient.addName().setFamily("Family" + theIndex).addGiven("Given" + theIndex);
+		patient.setGender(Enumerations.AdministrativeGender.UNKNOWN);
+		return patient;
+	}
+
+	private static Resource newEncounter(int theIndex) {
+		Encounter encounter = new Encounter();
+		encounter.setId("Encounter/" + theIndex);
+		encounter.setStatus(Encounter.EncounterStatus.FINISHED);
+		encounter.setSubject(new Reference("Patient/" + theIndex));
+		encounter.addParticipant().setIndividual(new Reference("Practitioner/" + (theIndex % 5)));
+		encounter.setPeriod(new Period().setStartElement(new DateTimeType("2020-01-" + String.format("%02d", (theIndex % 28) + 1) + "T10:00:00Z")));
+		return encounter;
+	}
+
+	private static Resource newObservation(int theIndex) {
+		Observation observation = new Observation();
+		observation.setId("Observation/" + theIndex);
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.getCode().addCoding().setSystem("http://loinc.org").setCode("29463-7");
+		observation.setSubject(new Reference("Patient/" + theIndex));
+		observation.setValue(new Quantity().setValue(60 + theIndex).setSystem("http://unitsofmeasure.org").setCode("kg"));
+		return observation;
+	}
+
+	private static byte[] encode(Resource theResource) {
+		return ourCtx.newJsonParser().encodeResourceToString(theResource).getBytes(StandardCharsets.UTF_8);
+	}
+
+}
@@ -1,14 +1,20 @@
 import com.google.common.collect.Lists;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class PlaygroundConstants {
 
-	public static final String FHIR_ENDPOINT_BASE_URL = "http://localhost:8000";
+	public static final String FHIR_ENDPOINT_BASE_URL = System.getProperty("endpoint", "http://localhost:8000");
 	public static final String FHIR_ENDPOINT_CREDENTIALS = "admin:password";
+	/**
+	 * Coding system used when tags are stored as <code>meta.tag</code> or <code>meta.security</code>
+	 */
+	public static final String TAG_SYSTEM = "http://example.org/fhir/CodeSystem/access-tags";
 	public static List<String> TAG_20PCT = Lists.newArrayList(
 		"20PCT-0",
 		"20PCT-1",
@@ -55,4 +61,19 @@ public class PlaygroundConstants {
 		return ALL_TAGS.get(idx);
 	}
 
+	/**
+	 * Returns a random selection of distinct tags, mixing all tiers from {@link #ALL_TAGS}. If more
+	 * tags are requested than exist, the remainder is padded with tags that are never assigned
+	 * to any resource (a user can be granted compartments that hold no data).
+	 */
+	public static List<String> randomTags(int theCount) {
+		List<String> shuffled = new ArrayList<>(ALL_TAGS);
+		Collections.shuffle(shuffled);
+		List<String> retVal = new ArrayList<>(shuffled.subList(0, Math.min(theCount, shuffled.size())));
+		for (int i = 0; retVal.size() < theCount; i++) {
+			retVal.add("UNASSIGNED-" + i);
+		}
+		return retVal;
+	}
+
 }
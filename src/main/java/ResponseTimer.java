@@ -0,0 +1,153 @@
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits the time taken by a FHIR client request into the part spent waiting on the
+ * server and the part spent in the client.
+ * <p>
+ * The HTTP client created here reads the whole response body as soon as the response
+ * headers arrive, before handing it to the HAPI parser. This means that the time to first
+ * byte, the time to receive the last byte, and the time taken by the client to parse the
+ * body do not overlap and can be reported separately.
+ * </p>
+ * <p>
+ * Timings are only collected on threads which have called {@link #start()}, so other
+ * requests made through the same client are passed through untouched.
+ * </p>
+ */
+public class ResponseTimer {
+
+	/**
+	 * Substituted for the real body when the body is being discarded, so that the client has next to nothing to parse
+	 */
+	private static final byte[] EMPTY_SEARCHSET = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\"}".getBytes(StandardCharsets.UTF_8);
+	private static final ThreadLocal<Timing> ourCurrentTiming = new ThreadLocal<>();
+
+	public static class Timing {
+		private final long myStartNanos = System.nanoTime();
+		private long myFirstByteNanos;
+		private long myLastByteNanos;
+		private long myEndNanos;
+		private long myBodyBytes;
+
+		public long getTotalNanos() {
+			return myEndNanos - myStartNanos;
+		}
+
+		public long getTimeToFirstByteNanos() {
+			return myFirstByteNanos - myStartNanos;
+		}
+
+		/**
+		 * Time between the first byte and the last byte of the body being received
+		 */
+		public long getTransferNanos() {
+			return myLastByteNanos - myFirstByteNanos;
+		}
+
+		/**
+		 * Time spent in the client after the whole body had been received (mostly parsing)
+		 */
+		public long getParseNanos() {
+			return myEndNanos - myLastByteNanos;
+		}
+
+		public long getBodyBytes() {
+			return myBodyBytes;
+		}
+	}
+
+	/**
+	 * Begins timing the next request made on the current thread
+	 */
+	public static void start() {
+		ourCurrentTiming.set(new Timing());
+	}
+
+	/**
+	 * Stops timing on the current thread and returns the timings for the request made since {@link #start()}
+	 *
+	 * @return The timings, or <code>null</code> if {@link #start()} wasn't called (e.g. because building the request failed)
+	 */
+	public static Timing finish() {
+		Timing retVal = ourCurrentTiming.get();
+		ourCurrentTiming.remove();
+		if (retVal == null) {
+			return null;
+		}
+		retVal.myEndNanos = System.nanoTime();
+		if (retVal.myFirstByteNanos == 0) {
+			// No body was received
+			retVal.myFirstByteNanos = retVal.myEndNanos;
+			retVal.myLastByteNanos = retVal.myEndNanos;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Creates an HTTP client for use with {@link ca.uhn.fhir.rest.client.api.IRestfulClientFactory#setHttpClient(Object)}
+	 *
+	 * @param theSocketTimeoutMillis The socket timeout
+	 * @param theDiscardBody         If true, timed successful response bodies are read and thrown away, and the client is
+	 *                               given an empty searchset Bundle to parse instead. Error bodies (e.g. an OperationOutcome)
+	 *                               are always passed through so that the client can report them.
+	 */
+	public static HttpClient newHttpClient(int theSocketTimeoutMillis, boolean theDiscardBody) {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(5000, TimeUnit.MILLISECONDS);
+		connectionManager.setMaxTotal(100);
+		connectionManager.setDefaultMaxPerRoute(100);
+
+		RequestConfig requestConfig = RequestConfig
+			.custom()
+			.setSocketTimeout(theSocketTimeoutMillis)
+			.setConnectTimeout(10000)
+			.build();
+
+		HttpResponseInterceptor timingInterceptor = (theResponse, theContext) -> {
+			Timing timing = ourCurrentTiming.get();
+			HttpEntity entity = theResponse.getEntity();
+			if (timing == null || entity == null) {
+				return;
+			}
+
+			int status = theResponse.getStatusLine().getStatusCode();
+			boolean discardBody = theDiscardBody && status >= 200 && status < 300;
+
+			timing.myFirstByteNanos = System.nanoTime();
+			byte[] body;
+			try (InputStream inputStream = entity.getContent()) {
+				if (discardBody) {
+					timing.myBodyBytes = IOUtils.consume(inputStream);
+					body = EMPTY_SEARCHSET;
+				} else {
+					body = IOUtils.toByteArray(inputStream);
+					timing.myBodyBytes = body.length;
+				}
+			}
+			timing.myLastByteNanos = System.nanoTime();
+
+			ByteArrayEntity bufferedEntity = new ByteArrayEntity(body);
+			bufferedEntity.setContentType(entity.getContentType());
+			theResponse.setEntity(bufferedEntity);
+		};
+
+		return HttpClientBuilder
+			.create()
+			.setConnectionManager(connectionManager)
+			.setDefaultRequestConfig(requestConfig)
+			.disableCookieManagement()
+			.addInterceptorLast(timingInterceptor)
+			.build();
+	}
+
+}
@@ -0,0 +1,73 @@
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.rp.ResourceProviderFactory;
+import ca.uhn.fhir.jpa.provider.r4.JpaSystemProviderR4;
+import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * Starts a local FHIR server so that the other steps can be run without any outside
+ * services. The server listens on -Dport (default 8000, which matches the default
+ * endpoint used by the other steps) and is selected using -Dserver:
+ * <ul>
+ *    <li><code>jpa</code> (the default) - An in-process HAPI FHIR JPA server backed by an embedded H2 database</li>
+ *    <li><code>null</code> - A {@link NullFhirServer} which discards transactions and returns canned search results</li>
+ * </ul>
+ */
+public class Step0_LocalServer {
+	private static final Logger ourLog = LoggerFactory.getLogger(Step0_LocalServer.class);
+
+	private static class JpaRestfulServer extends RestfulServer {
+		private final AnnotationConfigApplicationContext myAppCtx;
+
+		private JpaRestfulServer(AnnotationConfigApplicationContext theAppCtx) {
+			super(theAppCtx.getBean(FhirContext.class));
+			myAppCtx = theAppCtx;
+		}
+
+		@Override
+		protected void initialize() {
+			registerProviders(myAppCtx.getBean("myResourceProvidersR4", ResourceProviderFactory.class).createProviders());
+			registerProvider(myAppCtx.getBean("mySystemProviderR4", JpaSystemProviderR4.class));
+			setPagingProvider(myAppCtx.getBean(DatabaseBackedPagingProvider.class));
+			setDefaultResponseEncoding(EncodingEnum.JSON);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = Integer.parseInt(System.getProperty("port", "8000"));
+		String serverType = System.getProperty("server", "jpa");
+
+		switch (serverType) {
+			case "null" -> {
+				int pageSize = Integer.parseInt(System.getProperty("pageSize", "20"));
+				new NullFhirServer(port, pageSize).start();
+			}
+			case "jpa" -> startJpaServer(port);
+			default -> throw new IllegalArgumentException("Unknown server type: " + serverType);
+		}
+	}
+
+	private static void startJpaServer(int thePort) throws Exception {
+		ourLog.info("Starting JPA server");
+		AnnotationConfigApplicationContext appCtx = new AnnotationConfigApplicationContext(LocalJpaServerConfig.class);
+
+		ServletContextHandler contextHandler = new ServletContextHandler();
+		contextHandler.setContextPath("/");
+		contextHandler.addServlet(new ServletHolder(new JpaRestfulServer(appCtx)), "/*");
+
+		Server server = new Server(thePort);
+		server.setHandler(contextHandler);
+		server.start();
+		ourLog.info("JPA server listening on port {}", thePort);
+		server.join();
+		appCtx.close();
+	}
+
+}
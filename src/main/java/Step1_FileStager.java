@@ -20,6 +20,8 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -52,17 +54,29 @@ public class Step1_FileStager {
 	private static final AtomicInteger ourTotalWrittenFileCount = new AtomicInteger(0);
 	public static final String PATIENT_FILES_NDJSON_GZ = "patient-files.ndjson.gz";
 	public static final String META_FILES_NDJSON_GZ = "meta-files.ndjson.gz";
+	/**
+	 * Where to store the tags, e.g. -DtagModes=profile,tag,security. Listing several modes
+	 * writes identical tags into each, so one dataset can be benchmarked under every representation.
+	 */
+	private static final List<TagModeEnum> ourTagModes = TagModeEnum.parse(System.getProperty("tagModes", TagModeEnum.PROFILE.name()));
 	private static Exception ourException;
+	private static CardinalityOracle ourCardinalityOracle;
 	private static OutputStreamWriter ourPatientFileWriter;
 	private static OutputStreamWriter ourMetaFileWriter;
 
 	private static class FileAndName {
 		private final String myFilename;
 		private final String myContents;
+		private final CardinalityOracle.BundleSummary mySummary;
 
 		private FileAndName(String myFilename, String myContents) {
+			this(myFilename, myContents, null);
+		}
+
+		private FileAndName(String myFilename, String myContents, CardinalityOracle.BundleSummary mySummary) {
 			this.myFilename = myFilename;
 			this.myContents = myContents;
+			this.mySummary = mySummary;
 		}
 
 		public String getFilename() {
@@ -72,6 +86,13 @@ public class Step1_FileStager {
 		public String getContents() {
 			return myContents;
 		}
+
+		/**
+		 * @return What the cardinality oracle needs to know about the staged bundle, which is only set once the file has been processed
+		 */
+		public CardinalityOracle.BundleSummary getSummary() {
+			return mySummary;
+		}
 	}
 
 	private static class WriterThread extends Thread {
@@ -122,6 +143,8 @@ public class Step1_FileStager {
 							ourPatientFileWriter.write(nextFile.getContents());
 							ourPatientFileWriter.write("\n");
 						}
+						// Recorded once written, so that the oracle always matches the staged file
+						ourCardinalityOracle.recordBundle(nextFile.getSummary());
 					}
 				} catch (Exception e) {
 					ourLog.error("Failure during write", e);
@@ -210,65 +233,10 @@ public class Step1_FileStager {
 					continue;
 				}
 
-				Bundle bundle = ourCtx.newJsonParser().parseResource(Bundle.class, nextFile.getContents());
-				List<String> tags = getTagsForNewPatient();
-
-				List<Resource> resources = new ArrayList<>();
-				for (Iterator<Bundle.BundleEntryComponent> iter = bundle.getEntry().iterator(); iter.hasNext(); ) {
-					Bundle.BundleEntryComponent bundleEntryComponent = iter.next();
-					Resource resource = bundleEntryComponent.getResource();
-					if (resource != null) {
-						var resourceType = ourCtx.getResourceType(resource);
-
-						switch (resourceType) {
-							case "Practitioner" -> {
-								Practitioner p = (Practitioner) resource;
-								p.getMeta().getProfile().clear();
-								resources.add(p);
-							}
-							case "Location" -> {
-								Location e = (Location) resource;
-								e.getMeta().getProfile().clear();
-								tags.forEach(t -> e.getMeta().addProfile(t));
-								resources.add(e);
-							}
-							case "Organization" -> {
-								Organization p = (Organization) resource;
-								p.getMeta().getProfile().clear();
-								resources.add(p);
-							}
-							case "Patient" -> {
-								Patient p = (Patient) resource;
-								p.getMeta().getProfile().clear();
-								tags.forEach(t -> p.getMeta().addProfile(t));
-								resources.add(p);
-							}
-							case "Encounter" -> {
-								Encounter e = (Encounter) resource;
-								e.getMeta().getProfile().clear();
-								tags.forEach(t -> e.getMeta().addProfile(t));
-								resources.add(e);
-							}
-							case "Observation" -> {
-								Observation o = (Observation) resource;
-								o.getMeta().getProfile().clear();
-								tags.forEach(t -> o.getMeta().addProfile(t));
-								resources.add(o);
-							}
-							default -> iter.remove();
-						}
-
-					}
-				}
-
-				for (var nextResource : resources) {
-					AtomicInteger typeCount = resourceTypeToCount.computeIfAbsent(ourCtx.getResourceType(nextResource), t -> new AtomicInteger());
-					typeCount.incrementAndGet();
-				}
-
+				Bundle bundle = stageBundle(nextFile.getContents(), getTagsForNewPatient());
 				String newBundle = ourCtx.newJsonParser().encodeResourceToString(bundle);
 				try {
-					ourOutputFilesQueue.put(new FileAndName(nextFile.getFilename(), newBundle));
+					ourOutputFilesQueue.put(new FileAndName(nextFile.getFilename(), newBundle, CardinalityOracle.summarize(bundle)));
 				} catch (InterruptedException e) {
 					throw new InternalErrorException(e);
 				}
@@ -280,30 +248,124 @@ public class Step1_FileStager {
 				}
 			}
 		}
+	}
 
-		private List<String> getTagsForNewPatient() {
-			var retVal = new ArrayList<String>();
-			for (String next : PlaygroundConstants.TAG_20PCT) {
-				if (shouldApply(0.2)) {
-					retVal.add(next);
-				}
-			}
-			for (String next : PlaygroundConstants.TAG_1PCT) {
-				if (shouldApply(0.01)) {
-					retVal.add(next);
+	/**
+	 * Parses a Synthea patient bundle, removes any resources we don't upload, and applies the given tags.
+	 * The kept resources are added to the per-type counts logged at the end of the run.
+	 */
+	static Bundle stageBundle(String theContents, List<String> theTags) {
+		return stageBundle(theContents, theTags, resourceTypeToCount);
+	}
+
+	/**
+	 * @param theResourceTypeToCount The per-type counts to add the kept resources to, or <code>null</code> to not count them
+	 */
+	static Bundle stageBundle(String theContents, List<String> theTags, Map<String, AtomicInteger> theResourceTypeToCount) {
+		Bundle bundle = ourCtx.newJsonParser().parseResource(Bundle.class, theContents);
+
+		List<Resource> resources = new ArrayList<>();
+		for (Iterator<Bundle.BundleEntryComponent> iter = bundle.getEntry().iterator(); iter.hasNext(); ) {
+			Bundle.BundleEntryComponent bundleEntryComponent = iter.next();
+			Resource resource = bundleEntryComponent.getResource();
+			if (resource != null) {
+				var resourceType = ourCtx.getResourceType(resource);
+
+				switch (resourceType) {
+					case "Practitioner" -> {
+						Practitioner p = (Practitioner) resource;
+						p.getMeta().getProfile().clear();
+						resources.add(p);
+					}
+					case "Location" -> {
+						Location e = (Location) resource;
+						e.getMeta().getProfile().clear();
+						ourTagModes.forEach(t -> t.addTags(e.getMeta(), theTags));
+						resources.add(e);
+					}
+					case "Organization" -> {
+						Organization p = (Organization) resource;
+						p.getMeta().getProfile().clear();
+						resources.add(p);
+					}
+					case "Patient" -> {
+						Patient p = (Patient) resource;
+						p.getMeta().getProfile().clear();
+						ourTagModes.forEach(t -> t.addTags(p.getMeta(), theTags));
+						resources.add(p);
+					}
+					case "Encounter" -> {
+						Encounter e = (Encounter) resource;
+						e.getMeta().getProfile().clear();
+						ourTagModes.forEach(t -> t.addTags(e.getMeta(), theTags));
+						resources.add(e);
+					}
+					case "Observation" -> {
+						Observation o = (Observation) resource;
+						o.getMeta().getProfile().clear();
+						ourTagModes.forEach(t -> t.addTags(o.getMeta(), theTags));
+						resources.add(o);
+					}
+					default -> iter.remove();
 				}
+
 			}
-			for (String next : PlaygroundConstants.TAG_POINT1PCT) {
-				if (shouldApply(0.001)) {
-					retVal.add(next);
-				}
+		}
+
+		if (theResourceTypeToCount != null) {
+			for (var nextResource : resources) {
+				AtomicInteger typeCount = theResourceTypeToCount.computeIfAbsent(ourCtx.getResourceType(nextResource), t -> new AtomicInteger());
+				typeCount.incrementAndGet();
 			}
-			return retVal;
 		}
 
-		private boolean shouldApply(double theThreshold) {
-			return (Math.random() < theThreshold);
+		return bundle;
+	}
+
+	/**
+	 * The parser gives bundle entries their fullUrl as an ID, and Synthea's fullUrls are <code>urn:uuid:...</code>
+	 * which isn't a valid resource ID, so this takes the UUID from the fullUrl instead.
+	 *
+	 * @return The resource's ID, or <code>null</code> if it has neither a real ID nor a <code>urn:uuid</code> fullUrl
+	 */
+	static String getResourceId(Bundle.BundleEntryComponent theEntry) {
+		String id = theEntry.getResource().getIdElement().getIdPart();
+		if (id == null || id.startsWith("urn:")) {
+			String fullUrl = theEntry.getFullUrl();
+			id = fullUrl != null && fullUrl.startsWith("urn:uuid:") ? fullUrl.substring("urn:uuid:".length()) : null;
+		}
+		return id;
+	}
+
+	static List<String> getTagsForNewPatient() {
+		var retVal = new ArrayList<String>();
+		for (String next : PlaygroundConstants.TAG_20PCT) {
+			if (shouldApply(0.2)) {
+				retVal.add(next);
+			}
+		}
+		for (String next : PlaygroundConstants.TAG_1PCT) {
+			if (shouldApply(0.01)) {
+				retVal.add(next);
+			}
+		}
+		for (String next : PlaygroundConstants.TAG_POINT1PCT) {
+			if (shouldApply(0.001)) {
+				retVal.add(next);
+			}
 		}
+		return retVal;
+	}
+
+	private static boolean shouldApply(double theThreshold) {
+		return (Math.random() < theThreshold);
+	}
+
+	/**
+	 * Creates the writer used for staged ndjson.gz files
+	 */
+	static OutputStreamWriter newGzipWriter(OutputStream theOutputStream) throws IOException {
+		return new OutputStreamWriter(new GZIPOutputStream(new BufferedOutputStream(theOutputStream)), StandardCharsets.UTF_8);
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -316,6 +378,11 @@ public class Step1_FileStager {
 			return;
 		}
 
+		// Records the tags given to each patient, for checking query result counts in Step3_Queries
+		File patientFile = new File(STAGED_SYNTHEA_FILES, PATIENT_FILES_NDJSON_GZ);
+		File oracleFile = CardinalityOracle.getOracleFile(PATIENT_FILES_NDJSON_GZ);
+		ourCardinalityOracle = CardinalityOracle.readOrCreate(oracleFile, patientFile);
+
 		int readerPartitions = 4;
 		int idx = 0;
 		List<List<File>> partitions = Lists.partition(inputFiles, inputFiles.size() / readerPartitions);
@@ -328,40 +395,24 @@ public class Step1_FileStager {
 		}
 
 
-		File patientFile = new File(STAGED_SYNTHEA_FILES, PATIENT_FILES_NDJSON_GZ);
-		try (FileOutputStream patientFileFileOutputStream = new FileOutputStream(patientFile, true)) {
-			try (BufferedOutputStream patientFileBufferedStream = new BufferedOutputStream(patientFileFileOutputStream)) {
-				try (GZIPOutputStream patientFileGzipStream = new GZIPOutputStream(patientFileBufferedStream)) {
-					try (OutputStreamWriter patientFileWriter = new OutputStreamWriter(patientFileGzipStream, StandardCharsets.UTF_8)) {
-						ourPatientFileWriter = patientFileWriter;
-
-						File targetFile = new File(STAGED_SYNTHEA_FILES, META_FILES_NDJSON_GZ);
-						try (FileOutputStream metaFileFileOutputStream = new FileOutputStream(targetFile, true)) {
-							try (BufferedOutputStream metaFileBufferedStream = new BufferedOutputStream(metaFileFileOutputStream)) {
-								try (GZIPOutputStream metaFileGzipStream = new GZIPOutputStream(metaFileBufferedStream)) {
-									try (OutputStreamWriter metaFileWriter = new OutputStreamWriter(metaFileGzipStream, StandardCharsets.UTF_8)) {
-										ourMetaFileWriter = metaFileWriter;
-
-										for (int i = 0; i < 2; i++) {
-											new WriterThread().start();
-										}
-
-										while (ourException == null && !ourFinishedWriting.get()) {
-											Thread.sleep(1000);
-										}
-
-									}
-								}
-							}
-						}
+		File metaFile = new File(STAGED_SYNTHEA_FILES, META_FILES_NDJSON_GZ);
+		try (OutputStreamWriter patientFileWriter = newGzipWriter(new FileOutputStream(patientFile, true))) {
+			try (OutputStreamWriter metaFileWriter = newGzipWriter(new FileOutputStream(metaFile, true))) {
+				ourPatientFileWriter = patientFileWriter;
+				ourMetaFileWriter = metaFileWriter;
 
+				for (int i = 0; i < 2; i++) {
+					new WriterThread().start();
+				}
 
-					}
+				while (ourException == null && !ourFinishedWriting.get()) {
+					Thread.sleep(1000);
 				}
 			}
 		}
 
-
 		resourceTypeToCount.keySet().stream().sorted().forEach(t -> ourLog.info("Count {} -> {}", t, resourceTypeToCount.get(t).get()));
+		// Also saved after a failure, since the patients written so far have been appended to the staged file
+		ourCardinalityOracle.write(oracleFile);
 	}
 }
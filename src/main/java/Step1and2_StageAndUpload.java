@@ -0,0 +1,273 @@
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.search.reindex.ResourceReindexingSvcImpl;
+import ca.uhn.fhir.util.StopWatch;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs Step1_FileStager and Step2_DataUploader as a single streaming pipeline: Synthea files
+ * are read, filtered and retagged, and then uploaded straight away without being written to
+ * and read back from the staged ndjson.gz files.
+ * <p>
+ * Every stage is connected by a bounded queue, so when the server can't keep up the upload
+ * executor blocks the processor threads, which in turn block the reader threads.
+ * </p>
+ * <p>
+ * Meta files (practitioners, organizations and locations) are uploaded before any patients,
+ * since patient bundles refer to them. If -Dtee=true is set, the staged bundles are also
+ * appended to the staged files once they have been uploaded, so that they can be reused by
+ * Step2_DataUploader later. As
+ * with Step1_FileStager, each source file is deleted once it has been uploaded, so an
+ * interrupted run can be resumed.
+ * </p>
+ */
+public class Step1and2_StageAndUpload {
+	private static final Logger ourLog = LoggerFactory.getLogger(Step1and2_StageAndUpload.class);
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+	/**
+	 * The oracle for the patients uploaded without -Dtee, in the staged files directory. Pass it to Step3_Queries using -DoracleFile.
+	 */
+	public static final String UPLOADED_PATIENTS_ORACLE = "uploaded-patients.oracle.gz";
+	private static final FileAndContents END_OF_INPUT = new FileAndContents(null, null);
+	private static final BlockingQueue<FileAndContents> ourStagingQueue = new ArrayBlockingQueue<>(100);
+	private static final AtomicLong ourUploadedCount = new AtomicLong(0);
+	private static final AtomicLong ourResourcesUploadedCount = new AtomicLong(0);
+	private static final AtomicLong ourFailedCount = new AtomicLong(0);
+	private static final AtomicBoolean ourFirstUploadComplete = new AtomicBoolean(false);
+	private static final StopWatch ourStopWatch = new StopWatch();
+	private static LinkedBlockingQueue<Runnable> ourUploadQueue;
+	private static ExecutorService ourUploadExecutor;
+	private static EndpointPool ourEndpointPool;
+	private static CardinalityOracle ourCardinalityOracle;
+	private static OutputStreamWriter ourPatientTeeWriter;
+	private static OutputStreamWriter ourMetaTeeWriter;
+	private static int ourTotalFileCount;
+
+	private static class FileAndContents {
+		private final File myFile;
+		private final String myContents;
+
+		private FileAndContents(File theFile, String theContents) {
+			myFile = theFile;
+			myContents = theContents;
+		}
+
+		public File getFile() {
+			return myFile;
+		}
+
+		public String getContents() {
+			return myContents;
+		}
+	}
+
+	private static class ReaderThread extends Thread {
+		private final List<File> myInputFiles;
+
+		private ReaderThread(List<File> theInputFiles, int theReaderIndex) {
+			setName("reader-" + theReaderIndex);
+			myInputFiles = theInputFiles;
+		}
+
+		@Override
+		public void run() {
+			for (var nextFile : myInputFiles) {
+				try {
+					ourStagingQueue.put(new FileAndContents(nextFile, readFile(nextFile)));
+				} catch (Exception e) {
+					ourLog.error("Failed during read of {}", nextFile, e);
+				}
+			}
+		}
+	}
+
+	private static class ProcessorThread extends Thread {
+
+		private ProcessorThread(int theProcessorIndex) {
+			setName("worker-" + theProcessorIndex);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				FileAndContents nextFile;
+				try {
+					nextFile = ourStagingQueue.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if (nextFile == END_OF_INPUT) {
+					return;
+				}
+
+				try {
+					Bundle bundle = Step1_FileStager.stageBundle(nextFile.getContents(), Step1_FileStager.getTagsForNewPatient());
+
+					// Blocks when the upload queue is full
+					ourUploadExecutor.execute(() -> upload(nextFile.getFile(), bundle));
+				} catch (Exception e) {
+					ourLog.error("Failed during staging of {}", nextFile.getFile(), e);
+				}
+			}
+		}
+	}
+
+	private static void upload(File theSourceFile, Bundle theBundle) {
+		try {
+			ourEndpointPool.execute(Step2_DataUploader.getRoutingKey(theBundle), client -> client.transaction().withBundle(theBundle).execute());
+		} catch (Exception e) {
+			ourFailedCount.incrementAndGet();
+			ourLog.warn("Failure during upload of {}: {}", theSourceFile.getName(), e.toString());
+			return;
+		}
+
+		// Only uploaded patients are teed and recorded, since a failed file is kept and restaged with new tags next time
+		try {
+			tee(ourPatientTeeWriter, theBundle);
+			ourCardinalityOracle.recordBundle(theBundle);
+		} catch (IOException e) {
+			ourLog.error("Failed to write {} to the staged files", theSourceFile.getName(), e);
+		}
+
+		if (!ourFirstUploadComplete.getAndSet(true)) {
+			ourLog.info("First upload completed {} after starting", ourStopWatch);
+		}
+
+		if (!theSourceFile.delete()) {
+			ourLog.warn("Failed to delete {}, so it will be uploaded again next time", theSourceFile);
+		}
+		ourResourcesUploadedCount.addAndGet(theBundle.getEntry().size());
+		long uploaded = ourUploadedCount.incrementAndGet();
+		if (uploaded % 10 == 0) {
+			ourLog.info("Uploaded {}/{} - {} patient/sec, {} res/sec - StagingQueue[{}] UploadQueue[{}] - ETA: {}", uploaded, ourTotalFileCount, ourStopWatch.formatThroughput(uploaded, TimeUnit.SECONDS), ourStopWatch.formatThroughput(ourResourcesUploadedCount.get(), TimeUnit.SECONDS), ourStagingQueue.size(), ourUploadQueue.size(), ourStopWatch.getEstimatedTimeRemaining(uploaded, ourTotalFileCount));
+		}
+		if (uploaded % 1000 == 0) {
+			ourEndpointPool.logReport();
+		}
+	}
+
+	private static void tee(OutputStreamWriter theWriter, Bundle theBundle) throws IOException {
+		if (theWriter == null) {
+			return;
+		}
+		String encoded = ourCtx.newJsonParser().encodeResourceToString(theBundle);
+		synchronized (theWriter) {
+			theWriter.write(encoded);
+			theWriter.write("\n");
+		}
+	}
+
+	private static String readFile(File theFile) throws IOException {
+		try (FileReader reader = new FileReader(theFile)) {
+			return IOUtils.toString(reader);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean tee = Boolean.parseBoolean(System.getProperty("tee", "false"));
+		int uploadThreads = Integer.parseInt(System.getProperty("uploadThreads", "10"));
+
+		ourLog.info("Listing files in {}", Step1_FileStager.NEW_SYNTHEA_FILES);
+		List<File> metaFiles = new ArrayList<>();
+		List<File> patientFiles = new ArrayList<>();
+		for (File next : FileUtils.listFiles(Step1_FileStager.NEW_SYNTHEA_FILES, new String[]{"json"}, false)) {
+			if (Step2_DataUploader.isMetaFile(next.getName())) {
+				metaFiles.add(next);
+			} else {
+				patientFiles.add(next);
+			}
+		}
+		ourTotalFileCount = patientFiles.size();
+		if (metaFiles.isEmpty() && patientFiles.isEmpty()) {
+			ourLog.info("No input files");
+			return;
+		}
+
+		ourCtx.getRestfulClientFactory().setSocketTimeout(10000000);
+		ourEndpointPool = Step2_DataUploader.newEndpointPool(uploadThreads);
+
+		ourUploadQueue = new LinkedBlockingQueue<>(uploadThreads * 10);
+		ourUploadExecutor = new ThreadPoolExecutor(uploadThreads, uploadThreads, 0L, TimeUnit.MILLISECONDS, ourUploadQueue, new ResourceReindexingSvcImpl.BlockPolicy());
+
+		// Patients are recorded once they have been uploaded. When teeing, the oracle describes the staged
+		// file like the one written by Step1_FileStager, otherwise it only describes what this tool uploaded.
+		File oracleFile = tee ? CardinalityOracle.getOracleFile(Step1_FileStager.PATIENT_FILES_NDJSON_GZ) : new File(Step1_FileStager.STAGED_SYNTHEA_FILES, UPLOADED_PATIENTS_ORACLE);
+		File patientFile = new File(Step1_FileStager.STAGED_SYNTHEA_FILES, Step1_FileStager.PATIENT_FILES_NDJSON_GZ);
+		ourCardinalityOracle = CardinalityOracle.readOrCreate(oracleFile, tee ? patientFile : null);
+
+		if (tee) {
+			ourPatientTeeWriter = Step1_FileStager.newGzipWriter(new FileOutputStream(patientFile, true));
+			ourMetaTeeWriter = Step1_FileStager.newGzipWriter(new FileOutputStream(new File(Step1_FileStager.STAGED_SYNTHEA_FILES, Step1_FileStager.META_FILES_NDJSON_GZ), true));
+		}
+
+		try {
+			ourStopWatch.restart();
+			for (File nextMetaFile : metaFiles) {
+				Bundle bundle = Step1_FileStager.stageBundle(readFile(nextMetaFile), Step1_FileStager.getTagsForNewPatient());
+				Step2_DataUploader.uploadMetaBundle(ourEndpointPool.getAnyClient(), bundle, "meta file " + nextMetaFile.getName());
+				tee(ourMetaTeeWriter, bundle);
+				Validate.isTrue(nextMetaFile.delete(), "Failed to delete %s", nextMetaFile);
+			}
+
+			ourStopWatch.restart();
+			List<Thread> readers = new ArrayList<>();
+			int idx = 0;
+			for (var nextPartition : Lists.partition(patientFiles, Math.max(1, patientFiles.size() / 4))) {
+				ReaderThread reader = new ReaderThread(nextPartition, idx++);
+				reader.start();
+				readers.add(reader);
+			}
+			int processorCount = 10;
+			List<Thread> processors = new ArrayList<>();
+			for (int i = 0; i < processorCount; i++) {
+				ProcessorThread processor = new ProcessorThread(i);
+				processor.start();
+				processors.add(processor);
+			}
+
+			for (var next : readers) {
+				next.join();
+			}
+			for (int i = 0; i < processorCount; i++) {
+				ourStagingQueue.put(END_OF_INPUT);
+			}
+			for (var next : processors) {
+				next.join();
+			}
+			ourUploadExecutor.shutdown();
+			Validate.isTrue(ourUploadExecutor.awaitTermination(1, TimeUnit.DAYS));
+		} finally {
+			if (ourPatientTeeWriter != null) {
+				ourPatientTeeWriter.close();
+				ourMetaTeeWriter.close();
+			}
+			// Written even if an upload failed, because the source files of the bundles uploaded so far are gone
+			ourCardinalityOracle.write(oracleFile);
+		}
+
+		ourEndpointPool.logReport();
+		ourLog.info("Finished - Uploaded {} patients ({} resources, {} failed) in {} - {} patient/sec", ourUploadedCount.get(), ourResourcesUploadedCount.get(), ourFailedCount.get(), ourStopWatch, ourStopWatch.formatThroughput(ourUploadedCount.get(), TimeUnit.SECONDS));
+	}
+}
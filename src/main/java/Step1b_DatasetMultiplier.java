@@ -0,0 +1,339 @@
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.StopWatch;
+import org.apache.commons.lang3.time.DateUtils;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import static org.apache.commons.lang3.StringUtils.defaultString;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Scales up a staged dataset without rerunning Synthea. Each patient bundle in
+ * <code>patient-files.ndjson.gz</code> is written to the output once as-is, followed by
+ * <code>multiplier - 1</code> clones. Each clone gets:
+ * <ul>
+ *    <li>Fresh resource IDs and <code>urn:uuid</code> fullUrls, with internal references rewritten to match</li>
+ *    <li>Fresh Synthea identifiers, MRNs and SSNs</li>
+ *    <li>Perturbed names (the numeric suffix Synthea adds to each name is redrawn)</li>
+ *    <li>All dates shifted back by a random number of days (the same shift for the whole bundle)</li>
+ *    <li>Independently drawn tags, in whichever tag representations the input uses</li>
+ * </ul>
+ * Cloning runs in parallel (-Dthreads, default one per core) and memory is bounded by the
+ * size of the work queues. The output is written to <code>patient-files-x[multiplier].ndjson.gz</code>
+ * and can be uploaded using <code>Step2_DataUploader -DpatientFile=...</code>. A matching
+ * {@link CardinalityOracle} is written alongside it.
+ */
+public class Step1b_DatasetMultiplier {
+	private static final Logger ourLog = LoggerFactory.getLogger(Step1b_DatasetMultiplier.class);
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+	/**
+	 * Queued after the last line. Blank lines are never queued, so this can't be confused with data.
+	 */
+	private static final String END_OF_INPUT = "";
+	private static final int MAX_DATE_SHIFT_DAYS = 730;
+	private static final String SYNTHEA_IDENTIFIER_SYSTEM = "https://github.com/synthetichealth/synthea";
+	private static final String MRN_IDENTIFIER_SYSTEM = "http://hospital.smarthealthit.org";
+	private static final String SSN_IDENTIFIER_SYSTEM = "http://hl7.org/fhir/sid/us-ssn";
+	private static final AtomicLong ourWrittenCount = new AtomicLong(0);
+	private static final CardinalityOracle ourCardinalityOracle = new CardinalityOracle();
+	private static volatile Exception ourException;
+
+	private static class CloneThread extends Thread {
+		private final BlockingQueue<String> myInputQueue;
+		private final BlockingQueue<String> myOutputQueue;
+		private final int myMultiplier;
+
+		private CloneThread(int theIndex, BlockingQueue<String> theInputQueue, BlockingQueue<String> theOutputQueue, int theMultiplier) {
+			setName("cloner-" + theIndex);
+			myInputQueue = theInputQueue;
+			myOutputQueue = theOutputQueue;
+			myMultiplier = theMultiplier;
+		}
+
+		@Override
+		public void run() {
+			try {
+				String nextLine;
+				while ((nextLine = takeUnlessFailed(myInputQueue)) != null && !nextLine.equals(END_OF_INPUT)) {
+					if (!offerUnlessFailed(myOutputQueue, nextLine)) {
+						return;
+					}
+					Bundle original = ourCtx.newJsonParser().parseResource(Bundle.class, nextLine);
+					ourCardinalityOracle.recordBundle(original);
+					for (int i = 1; i < myMultiplier; i++) {
+						Bundle clone = cloneBundle(original);
+						ourCardinalityOracle.recordBundle(clone);
+						if (!offerUnlessFailed(myOutputQueue, ourCtx.newJsonParser().encodeResourceToString(clone))) {
+							return;
+						}
+					}
+				}
+			} catch (Exception e) {
+				ourLog.error("Failure during clone", e);
+				ourException = e;
+			} finally {
+				try {
+					offerUnlessFailed(myOutputQueue, END_OF_INPUT);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	private static class WriterThread extends Thread {
+		private final BlockingQueue<String> myOutputQueue;
+		private final OutputStreamWriter myWriter;
+		private final int myCloneThreadCount;
+
+		private WriterThread(BlockingQueue<String> theOutputQueue, OutputStreamWriter theWriter, int theCloneThreadCount) {
+			setName("writer");
+			myOutputQueue = theOutputQueue;
+			myWriter = theWriter;
+			myCloneThreadCount = theCloneThreadCount;
+		}
+
+		@Override
+		public void run() {
+			StopWatch sw = new StopWatch();
+			int finishedCloneThreads = 0;
+			try {
+				while (finishedCloneThreads < myCloneThreadCount) {
+					String nextLine = takeUnlessFailed(myOutputQueue);
+					if (nextLine == null) {
+						return;
+					}
+					if (nextLine.equals(END_OF_INPUT)) {
+						finishedCloneThreads++;
+						continue;
+					}
+
+					myWriter.write(nextLine);
+					myWriter.write("\n");
+
+					long written = ourWrittenCount.incrementAndGet();
+					if (written % 1000 == 0) {
+						ourLog.info("Have written {} patients - {}/sec", written, sw.formatThroughput(written, TimeUnit.SECONDS));
+					}
+				}
+			} catch (Exception e) {
+				ourLog.error("Failure during write", e);
+				ourException = e;
+			}
+		}
+	}
+
+	/**
+	 * Like {@link BlockingQueue#put(Object)}, but gives up if any thread has failed, since the
+	 * thread which would have drained the queue may be the one which failed
+	 *
+	 * @return false if the value was not queued because of a failure
+	 */
+	private static <T> boolean offerUnlessFailed(BlockingQueue<T> theQueue, T theValue) throws InterruptedException {
+		while (!theQueue.offer(theValue, 1, TimeUnit.SECONDS)) {
+			if (ourException != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Like {@link BlockingQueue#take()}, but gives up if any thread has failed
+	 *
+	 * @return null if nothing was taken because of a failure
+	 */
+	private static <T> T takeUnlessFailed(BlockingQueue<T> theQueue) throws InterruptedException {
+		T retVal;
+		while ((retVal = theQueue.poll(1, TimeUnit.SECONDS)) == null) {
+			if (ourException != null) {
+				return null;
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Creates a copy of a staged patient bundle with new identities, perturbed names and dates, and new tags
+	 */
+	static Bundle cloneBundle(Bundle theOriginal) {
+		Bundle retVal = theOriginal.copy();
+		FhirTerser terser = ourCtx.newTerser();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		// Assign new identities
+		Map<String, String> oldToNewReference = new HashMap<>();
+		Map<String, String> oldToNewId = new HashMap<>();
+		for (Bundle.BundleEntryComponent nextEntry : retVal.getEntry()) {
+			Resource resource = nextEntry.getResource();
+			String resourceType = ourCtx.getResourceType(resource);
+			String oldId = Step1_FileStager.getResourceId(nextEntry);
+			String newId = UUID.randomUUID().toString();
+			String newFullUrl = "urn:uuid:" + newId;
+
+			if (nextEntry.hasFullUrl()) {
+				oldToNewReference.put(nextEntry.getFullUrl(), newFullUrl);
+			}
+			if (oldId != null) {
+				oldToNewReference.put(resourceType + "/" + oldId, resourceType + "/" + newId);
+				oldToNewId.put(oldId, newId);
+			}
+			nextEntry.setFullUrl(newFullUrl);
+			resource.setId(newId);
+		}
+
+		// Starts out with the resource IDs, since some identifiers use the ID as their value
+		Map<String, String> oldToNewIdentifier = new HashMap<>(oldToNewId);
+		int dateShiftDays = -random.nextInt(MAX_DATE_SHIFT_DAYS + 1);
+		List<String> tags = Step1_FileStager.getTagsForNewPatient();
+
+		for (Bundle.BundleEntryComponent nextEntry : retVal.getEntry()) {
+			Resource resource = nextEntry.getResource();
+
+			for (Reference nextReference : terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+				String newReference = oldToNewReference.get(nextReference.getReference());
+				if (newReference != null) {
+					nextReference.setReference(newReference);
+				}
+			}
+
+			for (Identifier nextIdentifier : terser.getAllPopulatedChildElementsOfType(resource, Identifier.class)) {
+				String newValue = getNewIdentifierValue(nextIdentifier, oldToNewIdentifier, random);
+				if (newValue != null) {
+					nextIdentifier.setValue(newValue);
+				}
+			}
+
+			for (BaseDateTimeType nextDate : terser.getAllPopulatedChildElementsOfType(resource, BaseDateTimeType.class)) {
+				if (nextDate.getValue() != null) {
+					nextDate.setValue(DateUtils.addDays(nextDate.getValue(), dateShiftDays));
+				}
+			}
+
+			for (HumanName nextName : terser.getAllPopulatedChildElementsOfType(resource, HumanName.class)) {
+				if (nextName.hasFamily()) {
+					nextName.setFamily(perturbName(nextName.getFamily(), random));
+				}
+				for (StringType nextGiven : nextName.getGiven()) {
+					nextGiven.setValue(perturbName(nextGiven.getValue(), random));
+				}
+			}
+
+			for (TagModeEnum nextMode : TagModeEnum.values()) {
+				if (!nextMode.getTags(resource.getMeta()).isEmpty()) {
+					nextMode.removeTags(resource.getMeta());
+					nextMode.addTags(resource.getMeta(), tags);
+				}
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Synthea identifiers and MRNs get new UUIDs, and SSNs get new (still obviously fake) 999-xx-xxxx numbers.
+	 * Each old value is only replaced once per clone, so an identifier shared by several resources stays shared.
+	 *
+	 * @return The new value, or null if the identifier should be kept
+	 */
+	private static String getNewIdentifierValue(Identifier theIdentifier, Map<String, String> theOldToNewValue, ThreadLocalRandom theRandom) {
+		String oldValue = theIdentifier.getValue();
+		switch (defaultString(theIdentifier.getSystem())) {
+			case SYNTHEA_IDENTIFIER_SYSTEM:
+			case MRN_IDENTIFIER_SYSTEM:
+				return theOldToNewValue.computeIfAbsent(oldValue, t -> UUID.randomUUID().toString());
+			case SSN_IDENTIFIER_SYSTEM:
+				return theOldToNewValue.computeIfAbsent(oldValue, t -> String.format("999-%02d-%04d", theRandom.nextInt(1, 100), theRandom.nextInt(1, 10000)));
+			default:
+				return theOldToNewValue.get(oldValue);
+		}
+	}
+
+	/**
+	 * Synthea names have a numeric suffix (e.g. <code>Abbie917</code>), so redraw it
+	 */
+	private static String perturbName(String theName, ThreadLocalRandom theRandom) {
+		if (theName == null) {
+			return null;
+		}
+		String base = theName.replaceAll("[0-9]+$", "");
+		return base + theRandom.nextInt(1000);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int multiplier = Integer.parseInt(System.getProperty("multiplier", "10"));
+		int threads = Integer.parseInt(System.getProperty("threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+		File inputFile = new File(Step1_FileStager.STAGED_SYNTHEA_FILES, Step1_FileStager.PATIENT_FILES_NDJSON_GZ);
+		String outputFilename = "patient-files-x" + multiplier + ".ndjson.gz";
+		File outputFile = new File(Step1_FileStager.STAGED_SYNTHEA_FILES, outputFilename);
+		ourLog.info("Multiplying {} by {} into {} using {} threads", inputFile, multiplier, outputFile, threads);
+
+		BlockingQueue<String> inputQueue = new ArrayBlockingQueue<>(threads * 2);
+		BlockingQueue<String> outputQueue = new ArrayBlockingQueue<>(threads * 10);
+
+		StopWatch sw = new StopWatch();
+		try (OutputStreamWriter writer = Step1_FileStager.newGzipWriter(new FileOutputStream(outputFile, false))) {
+			List<Thread> cloneThreads = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				CloneThread cloneThread = new CloneThread(i, inputQueue, outputQueue, multiplier);
+				cloneThread.start();
+				cloneThreads.add(cloneThread);
+			}
+			WriterThread writerThread = new WriterThread(outputQueue, writer, threads);
+			writerThread.start();
+
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(inputFile)), StandardCharsets.UTF_8))) {
+				String nextLine;
+				while ((nextLine = reader.readLine()) != null && ourException == null) {
+					if (isNotBlank(nextLine) && !offerUnlessFailed(inputQueue, nextLine)) {
+						break;
+					}
+				}
+			}
+			for (int i = 0; i < threads; i++) {
+				if (!offerUnlessFailed(inputQueue, END_OF_INPUT)) {
+					break;
+				}
+			}
+
+			for (Thread next : cloneThreads) {
+				next.join();
+			}
+			writerThread.join();
+		}
+
+		if (ourException != null) {
+			throw ourException;
+		}
+		ourCardinalityOracle.write(CardinalityOracle.getOracleFile(outputFilename));
+		ourLog.info("Finished writing {} patients in {} - {}/sec", ourWrittenCount.get(), sw, sw.formatThroughput(ourWrittenCount.get(), TimeUnit.SECONDS));
+	}
+}
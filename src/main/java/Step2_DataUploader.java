@@ -1,15 +1,16 @@
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.search.reindex.ResourceReindexingSvcImpl;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.util.StopWatch;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.RateLimiter;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang3.Validate;
 import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,9 +49,10 @@ public class Step2_DataUploader {
 	private static LinkedBlockingQueue<Runnable> ourWorkQueue;
 	private static int ourSkip;
 	private static long ourSkipBytes;
+	private static RateLimiter ourIngestRateLimiter;
 
 	private static class UploadTask implements Callable<Void> {
-		private final IGenericClient myClient;
+		private final EndpointPool myEndpointPool;
 		private final Bundle myInputBundle;
 		private final long myBytesRead;
 		private final long myTotalBytes;
@@ -60,8 +62,8 @@ public class Step2_DataUploader {
 		private final ExecutorService myExecutor;
 		private int myRetryCount = 0;
 
-		public UploadTask(IGenericClient theClient, Bundle theInputBundle, long theBytesRead, long theTotalBytes, StopWatch theSw, int theFinalFileIndex, Queue<Future<?>> theFutures, ExecutorService theExecutor) {
-			myClient = theClient;
+		public UploadTask(EndpointPool theEndpointPool, Bundle theInputBundle, long theBytesRead, long theTotalBytes, StopWatch theSw, int theFinalFileIndex, Queue<Future<?>> theFutures, ExecutorService theExecutor) {
+			myEndpointPool = theEndpointPool;
 			myInputBundle = theInputBundle;
 			myBytesRead = theBytesRead;
 			myTotalBytes = theTotalBytes;
@@ -78,7 +80,7 @@ public class Step2_DataUploader {
 				long active = 0;
 				try {
 					active = ourActiveUploadsCount.incrementAndGet();
-					myClient.transaction().withBundle(myInputBundle).execute();
+					myEndpointPool.execute(getRoutingKey(myInputBundle), client -> client.transaction().withBundle(myInputBundle).execute());
 				} finally {
 					ourActiveUploadsCount.decrementAndGet();
 				}
@@ -89,15 +91,18 @@ public class Step2_DataUploader {
 				if (uploaded % 10 == 0) {
 					ourLog.info("Uploaded {} - Have read {} of {} - {} patient/sec, {} res/sec - {} active - ETA: {}", uploaded, FileUtils.byteCountToDisplaySize(myBytesRead), FileUtils.byteCountToDisplaySize(myTotalBytes), mySw.formatThroughput(uploaded, TimeUnit.SECONDS), mySw.formatThroughput(ourResourcesUploadedCount.get(), TimeUnit.SECONDS), active, mySw.getEstimatedTimeRemaining(myBytesRead, myTotalBytes));
 				}
+				if (uploaded % 1000 == 0) {
+					myEndpointPool.logReport();
+				}
 				return null;
 			} catch (Exception e) {
 				myRetryCount++;
 				String msg = "Failure " + myRetryCount + " during upload of file at index " + myFinalFileIndex + ": " + e;
 				if (myRetryCount <= 10) {
-					//msg += " - Resubmitting";
+					msg += " - Retrying";
 					ourLog.warn(msg);
-					//myFutures.add(myExecutor.submit(this));
-					return null;
+					// Goes through the pool again, which sends it to another node once the failing one has been ejected
+					return call();
 				}
 
 				// FIXME: remove
@@ -118,21 +123,30 @@ public class Step2_DataUploader {
 		String skipString = System.getProperty("skip", "0");
 		ourSkip = Integer.parseInt(skipString);
 
+		// Maximum number of patients to upload per second, e.g. -DingestRate=50 (0 means unlimited)
+		double ingestRate = Double.parseDouble(System.getProperty("ingestRate", "0"));
+		if (ingestRate > 0) {
+			ourLog.info("Limiting ingest rate to {} patients/sec", ingestRate);
+			ourIngestRateLimiter = RateLimiter.create(ingestRate);
+		}
+
 		ourWorkQueue = new LinkedBlockingQueue<>(5000);
-		ExecutorService executor = new ThreadPoolExecutor(10, 10, 0L, TimeUnit.MILLISECONDS, ourWorkQueue, new ResourceReindexingSvcImpl.BlockPolicy());
+		int uploadThreads = 10;
+		ExecutorService executor = new ThreadPoolExecutor(uploadThreads, uploadThreads, 0L, TimeUnit.MILLISECONDS, ourWorkQueue, new ResourceReindexingSvcImpl.BlockPolicy());
 
 		ourCtx.getRestfulClientFactory().setSocketTimeout(10000000);
-		IGenericClient client = ourCtx.newRestfulGenericClient(PlaygroundConstants.FHIR_ENDPOINT_BASE_URL);
-		client.registerInterceptor(new BasicAuthInterceptor(PlaygroundConstants.FHIR_ENDPOINT_CREDENTIALS));
-//		client.registerInterceptor(new LoggingInterceptor(false));
+		EndpointPool endpointPool = newEndpointPool(uploadThreads);
 
 		//uploadFile(Step1_FileStager.META_FILES_NDJSON_GZ, executor, client);
-		uploadFile(Step1_FileStager.PATIENT_FILES_NDJSON_GZ, executor, client);
+		// e.g. -DpatientFile=patient-files-x10.ndjson.gz to upload the output of Step1b_DatasetMultiplier
+		String patientFile = System.getProperty("patientFile", Step1_FileStager.PATIENT_FILES_NDJSON_GZ);
+		uploadFile(patientFile, executor, endpointPool);
 
 		executor.shutdown();
+		endpointPool.logReport();
 	}
 
-	private static void uploadFile(String theFilename, ExecutorService executor, IGenericClient client) throws IOException, ExecutionException, InterruptedException {
+	private static void uploadFile(String theFilename, ExecutorService executor, EndpointPool theEndpointPool) throws IOException, ExecutionException, InterruptedException {
 		File inputFile = new File("src/main/data/staged_synthea_files/" + theFilename);
 		long totalBytes = FileUtils.sizeOf(inputFile);
 		Validate.isTrue(inputFile.exists());
@@ -182,38 +196,18 @@ public class Step2_DataUploader {
 										ourLog.debug("Reading resource {} ({}) - Reading {}/sec", finalFileIndex, theFilename, sw.formatThroughput(finalFileIndex - ourSkip, TimeUnit.SECONDS));
 									}
 
-									Bundle inputBundle = ourCtx.newJsonParser().parseResource(Bundle.class, nextLine);
+									Bundle inputBundle = parseLine(nextLine);
 
 									if (theFilename.equals(Step1_FileStager.META_FILES_NDJSON_GZ)) {
-										try {
-											List<List<Bundle.BundleEntryComponent>> entryPartitions = Lists.partition(inputBundle.getEntry(), 100);
-											TreeMap<String, AtomicLong> responseToCount = new TreeMap<>();
-											for (int i = 0; i < entryPartitions.size(); i++) {
-												Bundle partitionBundle = new Bundle();
-												partitionBundle.setType(Bundle.BundleType.TRANSACTION);
-												partitionBundle.setEntry(entryPartitions.get(i));
-												ourLog.info("Uploading meta file {} partition {}/{} with {} entries: {}", finalFileIndex, i, entryPartitions.size(), partitionBundle.getEntry().size(), theFilename);
-												Bundle outcome = client.transaction().withBundle(partitionBundle).execute();
-												outcome
-													.getEntry()
-													.stream()
-													.map(t -> t.getResponse().getStatus())
-													.forEach(t -> responseToCount.computeIfAbsent(t, o -> new AtomicLong(0)).incrementAndGet());
-
-											}
-											ourLog.info("Meta upload outcomes: {}", responseToCount);
-											ourUploadedCount.incrementAndGet();
-										} catch (BaseServerResponseException e) {
-											IBaseOperationOutcome operationOutcome = e.getOperationOutcome();
-											if (operationOutcome != null) {
-												ourLog.error("Failure response: {}", ourCtx.newJsonParser().setPrettyPrint(true).encodeResourceToString(operationOutcome));
-											}
-											throw e;
-										}
+										uploadMetaBundle(theEndpointPool.getAnyClient(), inputBundle, "meta file " + finalFileIndex + " (" + theFilename + ")");
 										continue;
 									}
 
-									Callable<Void> task = new UploadTask(client, inputBundle, bytesRead - ourSkipBytes, totalBytes - ourSkipBytes, sw, finalFileIndex, futures, executor);
+									if (ourIngestRateLimiter != null) {
+										ourIngestRateLimiter.acquire();
+									}
+
+									Callable<Void> task = new UploadTask(theEndpointPool, inputBundle, bytesRead - ourSkipBytes, totalBytes - ourSkipBytes, sw, finalFileIndex, futures, executor);
 									futures.add(executor.submit(task));
 
 									while (futures.size() > 1000) {
@@ -230,6 +224,80 @@ public class Step2_DataUploader {
 
 	}
 
+	/**
+	 * Uploads a meta bundle (practitioners, organizations and locations) in partitions of 100
+	 * entries, since these bundles are too large to upload as a single transaction
+	 */
+	static void uploadMetaBundle(IGenericClient theClient, Bundle theInputBundle, String theDescription) {
+		try {
+			List<List<Bundle.BundleEntryComponent>> entryPartitions = Lists.partition(theInputBundle.getEntry(), 100);
+			TreeMap<String, AtomicLong> responseToCount = new TreeMap<>();
+			for (int i = 0; i < entryPartitions.size(); i++) {
+				Bundle partitionBundle = new Bundle();
+				partitionBundle.setType(Bundle.BundleType.TRANSACTION);
+				partitionBundle.setEntry(entryPartitions.get(i));
+				ourLog.info("Uploading {} partition {}/{} with {} entries", theDescription, i, entryPartitions.size(), partitionBundle.getEntry().size());
+				Bundle outcome = theClient.transaction().withBundle(partitionBundle).execute();
+				outcome
+					.getEntry()
+					.stream()
+					.map(t -> t.getResponse().getStatus())
+					.forEach(t -> responseToCount.computeIfAbsent(t, o -> new AtomicLong(0)).incrementAndGet());
+
+			}
+			ourLog.info("Meta upload outcomes: {}", responseToCount);
+			ourUploadedCount.incrementAndGet();
+		} catch (BaseServerResponseException e) {
+			IBaseOperationOutcome operationOutcome = e.getOperationOutcome();
+			if (operationOutcome != null) {
+				ourLog.error("Failure response: {}", ourCtx.newJsonParser().setPrettyPrint(true).encodeResourceToString(operationOutcome));
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates a pool of upload clients for the endpoints in -Dendpoints (or -Dendpoint)
+	 *
+	 * @param theUploadThreads The number of threads which will upload through the pool
+	 */
+	static EndpointPool newEndpointPool(int theUploadThreads) {
+		return new EndpointPool(EndpointPool.getConfiguredEndpoints(), ourCtx::newRestfulGenericClient, theUploadThreads);
+	}
+
+	/**
+	 * @return The fullUrl of the Patient in a patient bundle, so that all uploads for one patient go to the same node
+	 */
+	static String getRoutingKey(Bundle theBundle) {
+		for (Bundle.BundleEntryComponent next : theBundle.getEntry()) {
+			if (next.getResource() instanceof Patient) {
+				return next.getFullUrl();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Parses one line of a staged ndjson file
+	 */
+	static Bundle parseLine(String theLine) {
+		return ourCtx.newJsonParser().parseResource(Bundle.class, theLine);
+	}
+
+	/**
+	 * @return The number of patient bundles uploaded so far
+	 */
+	public static long getUploadedCount() {
+		return ourUploadedCount.get();
+	}
+
+	/**
+	 * @return The number of resources uploaded so far
+	 */
+	public static long getResourcesUploadedCount() {
+		return ourResourcesUploadedCount.get();
+	}
+
 	public static boolean isMetaFile(@NotNull String theFile) {
 		return theFile.startsWith("practitionerInformation") || theFile.startsWith("hospitalInformation");
 	}
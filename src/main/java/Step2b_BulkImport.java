@@ -0,0 +1,295 @@
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.StopWatch;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.Validate;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.UriType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.apache.commons.lang3.StringUtils.removeEnd;
+
+/**
+ * An alternative to Step2_DataUploader for initial loads, which uses the bulk data
+ * <code>$import</code> operation instead of one transaction per patient:
+ * <ol>
+ *    <li>The staged bundles are split into one <code>[type].ndjson</code> file per resource type. Since
+ *    these resources are no longer processed as transactions, <code>urn:uuid</code> references are
+ *    rewritten to <code>[type]/[id]</code>, and conditional references to practitioners,
+ *    organizations and locations are resolved using the meta file.</li>
+ *    <li>The files are served by an embedded {@link NdjsonFileServer} on -DfileServerPort. If the FHIR
+ *    server can't reach this machine as <code>localhost</code>, set -DfileServerBaseUrl.</li>
+ *    <li><code>$import</code> is invoked asynchronously on one healthy node of -Dendpoints (or on
+ *    -Dendpoint), and its status is polled until it completes, and the overall throughput is reported.</li>
+ * </ol>
+ * To test offline, run against <code>Step0_LocalServer -Dserver=null</code>, which fetches and counts
+ * the files instead of storing them.
+ */
+public class Step2b_BulkImport {
+	private static final Logger ourLog = LoggerFactory.getLogger(Step2b_BulkImport.class);
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+	public static final File BULK_IMPORT_FILES = new File(Step1_FileStager.STAGED_SYNTHEA_FILES, "bulk-import");
+	private static final String NDJSON_CONTENT_TYPE = "application/fhir+ndjson";
+
+	public static void main(String[] args) throws Exception {
+		int fileServerPort = Integer.parseInt(System.getProperty("fileServerPort", "8001"));
+		String fileServerBaseUrl = System.getProperty("fileServerBaseUrl", "http://localhost:" + fileServerPort);
+		int pollSeconds = Integer.parseInt(System.getProperty("pollSeconds", "5"));
+		String patientFile = System.getProperty("patientFile", Step1_FileStager.PATIENT_FILES_NDJSON_GZ);
+
+		List<File> inputFiles = new ArrayList<>();
+		File metaFile = new File(Step1_FileStager.STAGED_SYNTHEA_FILES, Step1_FileStager.META_FILES_NDJSON_GZ);
+		if (metaFile.exists()) {
+			// Must come first so that conditional references in the patient files can be resolved
+			inputFiles.add(metaFile);
+		}
+		inputFiles.add(new File(Step1_FileStager.STAGED_SYNTHEA_FILES, patientFile));
+
+		StopWatch splitSw = new StopWatch();
+		Map<String, Long> typeToCount = splitByResourceType(inputFiles, BULK_IMPORT_FILES);
+		long totalResources = typeToCount.values().stream().mapToLong(t -> t).sum();
+		ourLog.info("Split {} resources into {} files in {} - {} res/sec", totalResources, typeToCount.size(), splitSw, splitSw.formatThroughput(totalResources, TimeUnit.SECONDS));
+
+		// The import is a single job, so it is sent to one healthy node of -Dendpoints (or -Dendpoint)
+		EndpointPool endpointPool = new EndpointPool(EndpointPool.getConfiguredEndpoints(), ourCtx::newRestfulGenericClient, 1);
+		String fhirBaseUrl = removeEnd(endpointPool.getAnyClient().getServerBase(), "/");
+
+		NdjsonFileServer fileServer = new NdjsonFileServer(fileServerPort, BULK_IMPORT_FILES);
+		fileServer.start();
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			StopWatch importSw = new StopWatch();
+			String statusUrl = kickOffImport(httpClient, fhirBaseUrl, fileServerBaseUrl, typeToCount.keySet());
+			String outcome = pollUntilComplete(httpClient, statusUrl, pollSeconds, importSw);
+
+			ourLog.info("Import outcome: {}", outcome);
+			ourLog.info("Imported {} resources ({} patients) in {} - {} res/sec, {} patient/sec", totalResources, typeToCount.getOrDefault("Patient", 0L), importSw, importSw.formatThroughput(totalResources, TimeUnit.SECONDS), importSw.formatThroughput(typeToCount.getOrDefault("Patient", 0L), TimeUnit.SECONDS));
+		} finally {
+			fileServer.stop();
+		}
+	}
+
+	/**
+	 * Writes every resource in the staged bundle files to <code>[type].ndjson</code> in the output directory
+	 *
+	 * @return The number of resources written for each type
+	 */
+	static Map<String, Long> splitByResourceType(List<File> theInputFiles, File theOutputDirectory) throws IOException {
+		FileUtils.forceMkdir(theOutputDirectory);
+		for (File next : FileUtils.listFiles(theOutputDirectory, new String[]{"ndjson"}, false)) {
+			FileUtils.forceDelete(next);
+		}
+
+		Map<String, String> conditionalReferenceToId = new HashMap<>();
+		Map<String, Writer> typeToWriter = new HashMap<>();
+		Map<String, Long> typeToCount = new TreeMap<>();
+		AtomicLong unresolvedCount = new AtomicLong(0);
+		try {
+			for (File nextInputFile : theInputFiles) {
+				ourLog.info("Splitting {}", nextInputFile);
+				boolean isMetaFile = nextInputFile.getName().equals(Step1_FileStager.META_FILES_NDJSON_GZ);
+				try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(nextInputFile)), StandardCharsets.UTF_8))) {
+					String nextLine;
+					while ((nextLine = reader.readLine()) != null) {
+						if (isNotBlank(nextLine)) {
+							Bundle bundle = Step2_DataUploader.parseLine(nextLine);
+							if (isMetaFile) {
+								indexConditionalReferences(bundle, conditionalReferenceToId);
+							}
+							resolveReferences(bundle, conditionalReferenceToId, unresolvedCount);
+
+							for (Bundle.BundleEntryComponent nextEntry : bundle.getEntry()) {
+								Resource resource = nextEntry.getResource();
+								String resourceType = ourCtx.getResourceType(resource);
+								Writer writer = typeToWriter.computeIfAbsent(resourceType, t -> newWriter(new File(theOutputDirectory, t + ".ndjson")));
+								writer.write(ourCtx.newJsonParser().encodeResourceToString(resource));
+								writer.write("\n");
+								typeToCount.merge(resourceType, 1L, Long::sum);
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			for (Writer next : typeToWriter.values()) {
+				next.close();
+			}
+		}
+
+		if (unresolvedCount.get() > 0) {
+			ourLog.warn("Could not resolve {} references, these resources may be rejected by the server", unresolvedCount.get());
+		}
+		ourLog.info("Resource counts: {}", typeToCount);
+		return typeToCount;
+	}
+
+	/**
+	 * Remembers the ID of each meta resource under every conditional reference
+	 * (e.g. <code>Practitioner?identifier=system|value</code>) which Synthea may use for it
+	 */
+	private static void indexConditionalReferences(Bundle theBundle, Map<String, String> theConditionalReferenceToId) {
+		for (Bundle.BundleEntryComponent nextEntry : theBundle.getEntry()) {
+			Resource resource = nextEntry.getResource();
+			String resourceType = ourCtx.getResourceType(resource);
+			for (Identifier nextIdentifier : ourCtx.newTerser().getAllPopulatedChildElementsOfType(resource, Identifier.class)) {
+				if (nextIdentifier.hasSystem() && nextIdentifier.hasValue()) {
+					String conditionalReference = resourceType + "?identifier=" + nextIdentifier.getSystem() + "|" + nextIdentifier.getValue();
+					theConditionalReferenceToId.put(conditionalReference, resourceType + "/" + getOrAssignId(nextEntry));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the references in a transaction bundle so that they still resolve once its resources are stored individually
+	 */
+	private static void resolveReferences(Bundle theBundle, Map<String, String> theConditionalReferenceToId, AtomicLong theUnresolvedCount) {
+		Map<String, String> fullUrlToId = new HashMap<>();
+		for (Bundle.BundleEntryComponent nextEntry : theBundle.getEntry()) {
+			String id = ourCtx.getResourceType(nextEntry.getResource()) + "/" + getOrAssignId(nextEntry);
+			if (nextEntry.hasFullUrl()) {
+				fullUrlToId.put(nextEntry.getFullUrl(), id);
+			}
+		}
+
+		FhirTerser terser = ourCtx.newTerser();
+		for (Bundle.BundleEntryComponent nextEntry : theBundle.getEntry()) {
+			for (Reference nextReference : terser.getAllPopulatedChildElementsOfType(nextEntry.getResource(), Reference.class)) {
+				String reference = nextReference.getReference();
+				if (reference == null) {
+					continue;
+				}
+				if (reference.startsWith("urn:uuid:")) {
+					reference = fullUrlToId.get(reference);
+				} else if (reference.contains("?")) {
+					reference = theConditionalReferenceToId.get(reference);
+				} else {
+					continue;
+				}
+
+				if (reference != null) {
+					nextReference.setReference(reference);
+				} else {
+					theUnresolvedCount.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private static String getOrAssignId(Bundle.BundleEntryComponent theEntry) {
+		String id = Step1_FileStager.getResourceId(theEntry);
+		if (id == null) {
+			id = UUID.randomUUID().toString();
+		}
+		theEntry.getResource().setId(id);
+		return id;
+	}
+
+	private static Writer newWriter(File theFile) {
+		try {
+			return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(theFile, false), StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to open " + theFile, e);
+		}
+	}
+
+	/**
+	 * Invokes <code>$import</code> asynchronously
+	 *
+	 * @param theFhirBaseUrl The base URL of the FHIR server node to run the import on
+	 * @return The URL to poll for the status of the import
+	 */
+	private static String kickOffImport(CloseableHttpClient theHttpClient, String theFhirBaseUrl, String theFileServerBaseUrl, Iterable<String> theResourceTypes) throws IOException {
+		Parameters parameters = new Parameters();
+		parameters.addParameter().setName("inputFormat").setValue(new CodeType(NDJSON_CONTENT_TYPE));
+		parameters.addParameter().setName("inputSource").setValue(new UriType(theFileServerBaseUrl));
+		parameters.addParameter().setName("storageDetail").addPart().setName("type").setValue(new CodeType("https"));
+		for (String nextResourceType : theResourceTypes) {
+			Parameters.ParametersParameterComponent input = parameters.addParameter().setName("input");
+			input.addPart().setName("type").setValue(new CodeType(nextResourceType));
+			input.addPart().setName("url").setValue(new UriType(theFileServerBaseUrl + "/" + nextResourceType + ".ndjson"));
+		}
+
+		String importUrl = theFhirBaseUrl + "/$import";
+		ourLog.info("Starting import at {}", importUrl);
+		HttpPost post = new HttpPost(importUrl);
+		post.addHeader("Prefer", "respond-async");
+		post.addHeader("Accept", "application/fhir+json");
+		post.addHeader("Authorization", getAuthorizationHeader());
+		post.setEntity(new StringEntity(ourCtx.newJsonParser().encodeResourceToString(parameters), ContentType.create("application/fhir+json", StandardCharsets.UTF_8)));
+
+		try (CloseableHttpResponse response = theHttpClient.execute(post)) {
+			String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : "";
+			int status = response.getStatusLine().getStatusCode();
+			Validate.isTrue(status == 202, "Expected HTTP 202 from $import but got %d: %s", status, body);
+			Validate.isTrue(response.containsHeader("Content-Location"), "No Content-Location in $import response");
+			return URI.create(importUrl).resolve(response.getFirstHeader("Content-Location").getValue()).toString();
+		}
+	}
+
+	/**
+	 * Polls the status of an import until it is complete
+	 *
+	 * @return The body of the final status response
+	 */
+	@SuppressWarnings("BusyWait")
+	private static String pollUntilComplete(CloseableHttpClient theHttpClient, String theStatusUrl, int thePollSeconds, StopWatch theSw) throws IOException, InterruptedException {
+		while (true) {
+			HttpGet get = new HttpGet(theStatusUrl);
+			get.addHeader("Accept", "application/fhir+json");
+			get.addHeader("Authorization", getAuthorizationHeader());
+			try (CloseableHttpResponse response = theHttpClient.execute(get)) {
+				String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : "";
+				int status = response.getStatusLine().getStatusCode();
+				if (status == 200) {
+					return body;
+				}
+				Validate.isTrue(status == 202, "Import failed with HTTP %d: %s", status, body);
+				String progress = response.containsHeader("X-Progress") ? response.getFirstHeader("X-Progress").getValue() : "in progress";
+				ourLog.info("Import {} after {}", progress, theSw);
+			}
+			Thread.sleep(thePollSeconds * 1000L);
+		}
+	}
+
+	private static String getAuthorizationHeader() {
+		return "Basic " + Base64.getEncoder().encodeToString(PlaygroundConstants.FHIR_ENDPOINT_CREDENTIALS.getBytes(StandardCharsets.UTF_8));
+	}
+
+}
@@ -1,73 +1,193 @@
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
 import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
+import ca.uhn.fhir.rest.api.SummaryEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.gclient.DateClientParam;
+import ca.uhn.fhir.rest.gclient.IQuery;
 import ca.uhn.fhir.rest.gclient.QuantityClientParam;
 import ca.uhn.fhir.rest.gclient.ReferenceClientParam;
 import ca.uhn.fhir.rest.gclient.StringClientParam;
 import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SlidingWindowReservoir;
 import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.time.DateUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Patient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Step3_Queries {
 
 	private static final Logger ourLog = LoggerFactory.getLogger(Step3_Queries.class);
 	private static final MetricRegistry ourMetricRegistry = new MetricRegistry();
-	private static FhirContext ourCtx = FhirContext.forR4();
+	private static final PayloadModeEnum ourPayloadMode = PayloadModeEnum.valueOf(System.getProperty("payload", PayloadModeEnum.FULL.name()).toUpperCase());
+	/**
+	 * If true (-DdiscardBody=true), search response bodies are received in full but never parsed by the client
+	 */
+	private static final boolean ourDiscardBody = Boolean.parseBoolean(System.getProperty("discardBody", "false"));
+	/**
+	 * Which tag representation to search, e.g. -DtagMode=security. The data must have been
+	 * staged with this mode included in -DtagModes.
+	 */
+	private static final TagModeEnum ourTagMode = TagModeEnum.valueOf(System.getProperty("tagMode", TagModeEnum.PROFILE.name()).toUpperCase());
+	/**
+	 * If true (-DrequestTotal=true), queries with an expected result count ask the server for an accurate <code>Bundle.total</code>
+	 * to compare it with. This is off by default since counting adds to the latency being measured.
+	 */
+	private static final boolean ourRequestTotal = Boolean.parseBoolean(System.getProperty("requestTotal", "false"));
+	private static final AtomicLong ourCardinalityMismatchCount = new AtomicLong(0);
+	private static final AtomicLong ourQueryFailureCount = new AtomicLong(0);
+	private static CardinalityOracle ourCardinalityOracle;
+	private static PrintWriter ourCardinalityLog;
+	private static EndpointPool ourEndpointPool;
 	private static IGenericClient ourClient;
 	private static List<Pair<String, String>> ourNamePairs;
 	private static ArrayList<Encounter> ourEncounters;
 	private static List<BaseTest> ourTasks = new ArrayList<>();
 	private static DecimalFormat ourDecimalFormat = new DecimalFormat("#.##");
+	private static volatile Map<String, Histogram> ourBucketElapsedMillisHistograms = new ConcurrentHashMap<>();
+
+	/**
+	 * Optional reductions of the search response payload, e.g. -Dpayload=summary
+	 */
+	enum PayloadModeEnum {
+		/**
+		 * Full resources
+		 */
+		FULL,
+		/**
+		 * <code>_summary=true</code>
+		 */
+		SUMMARY,
+		/**
+		 * <code>_elements=id</code>
+		 */
+		ELEMENTS,
+		/**
+		 * <code>_summary=count</code> - No resources are returned at all
+		 */
+		COUNT;
+
+		IQuery<Bundle> apply(IQuery<Bundle> theQuery) {
+			return switch (this) {
+				case FULL -> theQuery;
+				case SUMMARY -> theQuery.summaryMode(SummaryEnum.TRUE);
+				case ELEMENTS -> theQuery.elementsSubset("id");
+				case COUNT -> theQuery.summaryMode(SummaryEnum.COUNT);
+			};
+		}
+	}
 
 	abstract static class BaseTest {
 
-		private final Histogram myElapsedMillisHistogram;
-		private final Histogram myResultsHistogram;
 		protected int myExecuteCount = 0;
-		BaseTest() {
-			myElapsedMillisHistogram = ourMetricRegistry.histogram(getName() + "-elapsed", () -> new Histogram(new SlidingWindowReservoir(100)));
-			myResultsHistogram = ourMetricRegistry.histogram(getName() + "-results", () -> new Histogram(new SlidingWindowReservoir(100)));
-		}
+		private Long myExpectedCount;
 
 		public Histogram getResultsHistogram() {
-			return myResultsHistogram;
+			return getHistogram("results");
 		}
 
 		abstract String getName();
 
 		void run() {
 			for (int i = 0; i < 10; i++) {
-				long startTime = System.nanoTime();
-				Bundle outcome = doExecuteQuery();
-				long elapsedNanos = System.nanoTime() - startTime;
-				long elapsedMillis = elapsedNanos / 1000000;
-				myElapsedMillisHistogram.update(elapsedMillis);
-				myResultsHistogram.update(outcome.getEntry().size());
+				myExpectedCount = null;
+				Bundle outcome;
+				ResponseTimer.Timing timing;
+				try {
+					outcome = ourEndpointPool.execute(null, client -> {
+						IQuery<Bundle> query = newQuery(client);
+						return executeTimed(query, myExpectedCount != null && ourRequestTotal);
+					});
+				} catch (RuntimeException e) {
+					// Counted rather than thrown, so that e.g. a node going down doesn't stop the whole run
+					ourQueryFailureCount.incrementAndGet();
+					ourLog.warn("{} failed: {}", getName(), e.toString());
+					continue;
+				} finally {
+					// Also clears the timing of a failed request, so that it isn't left on the thread
+					timing = ResponseTimer.finish();
+				}
+
+				long elapsedMillis = timing.getTotalNanos() / 1000000;
+				getElapsedMillisHistogram().update(elapsedMillis);
+				ourBucketElapsedMillisHistograms.computeIfAbsent(getName(), t -> new Histogram(new UniformReservoir())).update(elapsedMillis);
+				getHistogram("ttfb-micros").update(timing.getTimeToFirstByteNanos() / 1000);
+				getHistogram("transfer-micros").update(timing.getTransferNanos() / 1000);
+				getHistogram("parse-micros").update(timing.getParseNanos() / 1000);
+				getHistogram("bytes").update(timing.getBodyBytes());
+				getResultsHistogram().update(outcome.getEntry().size());
+				if (myExpectedCount != null) {
+					recordCardinality(myExpectedCount, outcome, elapsedMillis);
+				}
 				myExecuteCount++;
 
 			}
 		}
 
-		protected abstract Bundle doExecuteQuery();
+		/**
+		 * Called by {@link #newQuery(IGenericClient)} when the only criteria are tags, so that
+		 * the number of matches can be looked up in the {@link CardinalityOracle}
+		 *
+		 * @param theTagGroups The tags searched for, as an AND of OR-lists
+		 */
+		protected void expect(String theResourceType, List<List<String>> theTagGroups) {
+			if (ourCardinalityOracle != null) {
+				myExpectedCount = ourCardinalityOracle.countResources(theResourceType, theTagGroups, ourTagMode);
+			}
+		}
+
+		private void recordCardinality(long theExpectedCount, Bundle theOutcome, long theElapsedMillis) {
+			getHistogram("expected").update(theExpectedCount);
+			Integer actualCount = theOutcome.hasTotal() ? theOutcome.getTotal() : null;
+			boolean mismatch = actualCount != null && actualCount != theExpectedCount;
+			if (mismatch) {
+				ourCardinalityMismatchCount.incrementAndGet();
+				ourLog.warn("{} matched {} resources but {} were expected", getName(), actualCount, theExpectedCount);
+			}
+			String totalMode = ourRequestTotal ? "accurate" : "default";
+			writeCardinalityLine(getName() + "," + theExpectedCount + "," + (actualCount != null ? actualCount : "") + "," + theOutcome.getEntry().size() + "," + theElapsedMillis + "," + totalMode + "," + mismatch);
+		}
+
+		/**
+		 * @param theClient The client for the node which the query will be sent to
+		 */
+		protected abstract IQuery<Bundle> newQuery(IGenericClient theClient);
 
 		public Histogram getElapsedMillisHistogram() {
-			return myElapsedMillisHistogram;
+			return getHistogram("elapsed");
+		}
+
+		public Histogram getHistogram(String theSuffix) {
+			// Looked up lazily because subclass names can depend on constructor arguments
+			return ourMetricRegistry.histogram(getName() + "-" + theSuffix, () -> new Histogram(new SlidingWindowReservoir(100)));
 		}
 	}
 
@@ -79,16 +199,15 @@ public class Step3_Queries {
 		}
 
 		@Override
-		protected Bundle doExecuteQuery() {
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
 			int nameIndex = (int) ((double) ourNamePairs.size() * Math.random());
 			Pair<String, String> namePair = ourNamePairs.get(nameIndex);
-			return ourClient
+			return theClient
 				.search()
 				.forResource("Patient")
 				.where(new StringClientParam("given").matches().value(namePair.getLeft()))
 				.and(new StringClientParam("family").matches().value(namePair.getRight()))
-				.returnBundle(Bundle.class)
-				.execute();
+				.returnBundle(Bundle.class);
 		}
 	}
 
@@ -100,14 +219,134 @@ public class Step3_Queries {
 		}
 
 		@Override
-		protected Bundle doExecuteQuery() {
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
 			String tag = PlaygroundConstants.randomTag();
-			return ourClient
+			expect("Patient", List.of(List.of(tag)));
+			return theClient
+				.search()
+				.forResource("Patient")
+				.where(ourTagMode.newCriterion(tag))
+				.returnBundle(Bundle.class);
+		}
+	}
+
+	/**
+	 * Patients visible to a user who has been granted any one of K tags (an OR-list)
+	 */
+	static class FindAllPatientsWithAnyOfTagsTest extends BaseTest {
+
+		private final int myTagCount;
+
+		FindAllPatientsWithAnyOfTagsTest(int theTagCount) {
+			myTagCount = theTagCount;
+		}
+
+		@Override
+		String getName() {
+			return "PTS_WITH_ANY_OF_" + myTagCount + "_TAGS";
+		}
+
+		@Override
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
+			List<String> tags = PlaygroundConstants.randomTags(myTagCount);
+			expect("Patient", List.of(tags));
+			return theClient
 				.search()
 				.forResource("Patient")
-				.where(new StringClientParam("_profile").contains().value(tag))
-				.returnBundle(Bundle.class)
-				.execute();
+				.where(ourTagMode.newCriterion(tags))
+				.returnBundle(Bundle.class);
+		}
+	}
+
+	/**
+	 * Patients visible to a user whose K tags are split into groups, where the patient
+	 * must carry at least one tag from every group (an AND of OR-lists)
+	 */
+	static class FindAllPatientsWithTagGroupsTest extends BaseTest {
+
+		private final int myTagCount;
+		private final int myGroupCount;
+
+		FindAllPatientsWithTagGroupsTest(int theTagCount, int theGroupCount) {
+			Validate.isTrue(theTagCount >= theGroupCount, "Can not split %d tags into %d groups", theTagCount, theGroupCount);
+			myTagCount = theTagCount;
+			myGroupCount = theGroupCount;
+		}
+
+		@Override
+		String getName() {
+			return "PTS_WITH_" + myGroupCount + "_GROUPS_OF_" + myTagCount + "_TAGS";
+		}
+
+		@Override
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
+			// Dealt round-robin, since randomTags puts any never-assigned padding tags after the real ones,
+			// and a group holding only padding would make the whole query match nothing
+			List<String> tags = PlaygroundConstants.randomTags(myTagCount);
+			List<List<String>> groups = new ArrayList<>();
+			for (int i = 0; i < myGroupCount; i++) {
+				groups.add(new ArrayList<>());
+			}
+			for (int i = 0; i < tags.size(); i++) {
+				groups.get(i % myGroupCount).add(tags.get(i));
+			}
+
+			expect("Patient", groups);
+			IQuery<Bundle> query = theClient
+				.search()
+				.forResource("Patient")
+				.returnBundle(Bundle.class);
+			for (List<String> nextGroup : groups) {
+				query = query.and(ourTagMode.newCriterion(nextGroup));
+			}
+			return query;
+		}
+	}
+
+	static class FindEncountersForProviderWithAnyOfPatientTagsTest extends BaseTest {
+
+		private final int myTagCount;
+
+		FindEncountersForProviderWithAnyOfPatientTagsTest(int theTagCount) {
+			myTagCount = theTagCount;
+		}
+
+		@Override
+		String getName() {
+			return "ENCS_FOR_PROVIDER_WITH_ANY_OF_" + myTagCount + "_PT_TAGS";
+		}
+
+		@Override
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
+			List<String> tags = PlaygroundConstants.randomTags(myTagCount);
+			Encounter encounter = ourEncounters.get((int) ((double) ourEncounters.size() * Math.random()));
+			String practitioner = encounter.getParticipantFirstRep().getIndividual().getReference();
+
+			return theClient
+				.search()
+				.forResource("Encounter")
+				.where(new ReferenceClientParam("practitioner").hasId(practitioner))
+				.and(ourTagMode.newCriterion(tags))
+				.returnBundle(Bundle.class);
+		}
+	}
+
+	static class FindAllEncountersWithTagTest extends BaseTest {
+
+		@Override
+		String getName() {
+			return "ENCS_WITH_TAG";
+		}
+
+		@Override
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
+			String tag = PlaygroundConstants.randomTag();
+			expect("Encounter", List.of(List.of(tag)));
+			return theClient
+				.search()
+				.forResource("Encounter")
+				.where(ourTagMode.newCriterion(tag))
+				.returnBundle(Bundle.class);
 		}
 	}
 
@@ -119,16 +358,15 @@ public class Step3_Queries {
 		}
 
 		@Override
-		protected Bundle doExecuteQuery() {
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
 			String tag = PlaygroundConstants.randomTag();
-			return ourClient
+			return theClient
 				.search()
 				.forResource("Observation")
 				.where(new TokenClientParam("code").exactly().systemAndCode("http://loinc.org", "29463-7"))
 				.and(new QuantityClientParam("value-quantity").greaterThan().number(90).andUnits("http://unitsofmeasure.org", "kg"))
-				.and(new StringClientParam("_profile").contains().value(tag))
-				.returnBundle(Bundle.class)
-				.execute();
+				.and(ourTagMode.newCriterion(tag))
+				.returnBundle(Bundle.class);
 		}
 	}
 
@@ -140,18 +378,17 @@ public class Step3_Queries {
 		}
 
 		@Override
-		protected Bundle doExecuteQuery() {
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
 			String tag = PlaygroundConstants.randomTag();
 			Encounter encounter = ourEncounters.get((int) ((double) ourEncounters.size() * Math.random()));
 			String practitioner = encounter.getParticipantFirstRep().getIndividual().getReference();
 
-			return ourClient
+			return theClient
 				.search()
 				.forResource("Encounter")
 				.where(new ReferenceClientParam("practitioner").hasId(practitioner))
-				.and(new StringClientParam("_profile").contains().value(tag))
-				.returnBundle(Bundle.class)
-				.execute();
+				.and(ourTagMode.newCriterion(tag))
+				.returnBundle(Bundle.class);
 		}
 	}
 
@@ -163,39 +400,174 @@ public class Step3_Queries {
 		}
 
 		@Override
-		protected Bundle doExecuteQuery() {
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
 			String tag = PlaygroundConstants.randomTag();
 			Encounter encounter = ourEncounters.get((int) ((double) ourEncounters.size() * Math.random()));
 			DateTimeType encounterStart = new DateTimeType(encounter.getPeriod().getStartElement().asStringValue());
 			encounterStart.setPrecision(TemporalPrecisionEnum.DAY);
 
-			return ourClient
+			return theClient
 				.search()
 				.forResource("Encounter")
-				.where(new ReferenceClientParam("date").hasId(encounterStart.getValueAsString()))
-				.and(new StringClientParam("_profile").contains().value(tag))
-				.returnBundle(Bundle.class)
-				.execute();
+				.where(new DateClientParam("date").exactly().day(encounterStart.getValueAsString()))
+				.and(ourTagMode.newCriterion(tag))
+				.returnBundle(Bundle.class);
 		}
 	}
 
-	public static void main(String[] args) {
-		ourCtx.getRestfulClientFactory().setSocketTimeout(10000000);
-		ourClient = ourCtx.newRestfulGenericClient(PlaygroundConstants.FHIR_ENDPOINT_BASE_URL);
-		ourClient.registerInterceptor(new BasicAuthInterceptor(PlaygroundConstants.FHIR_ENDPOINT_CREDENTIALS));
+	/**
+	 * Encounters starting within a window of a given number of days
+	 */
+	static class FindEncountersInDateRangeWithPatientTag extends BaseTest {
 
-		preLoadNames();
-		preLoadEncounters();
+		private final int myWidthDays;
 
-		ourTasks.add(new FindAllPatientsWithTagTest());
-		ourTasks.add(new FindAllPatientsWithSpecificNameTest());
-		//ourTasks.add(new FindObservationsAboveThreasholdWithTagTest());
-		ourTasks.add(new FindEncountersForProviderWithPatientTag());
-		ourTasks.add(new FindEncountersOnDateWithPatientTag());
+		FindEncountersInDateRangeWithPatientTag(int theWidthDays) {
+			myWidthDays = theWidthDays;
+		}
+
+		@Override
+		String getName() {
+			return "ENCS_IN_" + myWidthDays + "_DAYS_WITH_PT_TAG";
+		}
+
+		@Override
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
+			String tag = PlaygroundConstants.randomTag();
+			Encounter encounter = ourEncounters.get((int) ((double) ourEncounters.size() * Math.random()));
+			Date rangeStart = DateUtils.truncate(encounter.getPeriod().getStart(), Calendar.DATE);
+			Date rangeEnd = DateUtils.addDays(rangeStart, myWidthDays);
+
+			return theClient
+				.search()
+				.forResource("Encounter")
+				.where(new DateClientParam("date").afterOrEquals().day(rangeStart))
+				.and(new DateClientParam("date").before().day(rangeEnd))
+				.and(ourTagMode.newCriterion(tag))
+				.returnBundle(Bundle.class);
+		}
+	}
+
+	/**
+	 * Reverse chain: Patients who have a body weight Observation above a threshold
+	 */
+	static class FindPatientsWithObservationAboveThresholdWithTagTest extends BaseTest {
+
+		@Override
+		String getName() {
+			return "PTS_HAS_OBS_ABOVE_THRSHOLD_WITH_TAG";
+		}
+
+		@Override
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
+			String tag = PlaygroundConstants.randomTag();
+			return theClient
+				.search()
+				.forResource("Patient")
+				.whereMap(Map.of("_has:Observation:subject:code-value-quantity", List.of("http://loinc.org|29463-7$gt90")))
+				.and(ourTagMode.newCriterion(tag))
+				.returnBundle(Bundle.class);
+		}
+	}
+
+	/**
+	 * Chained search: Observations whose subject Patient carries the tag, rather than the Observation itself
+	 */
+	static class FindObservationsAboveThresholdWithChainedPatientTagTest extends BaseTest {
+
+		@Override
+		String getName() {
+			return "OBS_ABOVE_THRSHOLD_WITH_CHAINED_PT_TAG";
+		}
+
+		@Override
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
+			String tag = PlaygroundConstants.randomTag();
+			return theClient
+				.search()
+				.forResource("Observation")
+				.where(new TokenClientParam("code").exactly().systemAndCode("http://loinc.org", "29463-7"))
+				.and(new QuantityClientParam("value-quantity").greaterThan().number(90).andUnits("http://unitsofmeasure.org", "kg"))
+				.and(new ReferenceClientParam("subject").hasChainedProperty("Patient", ourTagMode.newCriterion(tag)))
+				.returnBundle(Bundle.class);
+		}
+	}
+
+	static class FindPatientsWithTagRevIncludeEncountersAndObservationsTest extends BaseTest {
+
+		@Override
+		String getName() {
+			return "PTS_WITH_TAG_REVINCLUDE_ENCS_OBS";
+		}
+
+		@Override
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
+			String tag = PlaygroundConstants.randomTag();
+			// The total only counts the patients, not the included resources
+			expect("Patient", List.of(List.of(tag)));
+			return theClient
+				.search()
+				.forResource("Patient")
+				.where(ourTagMode.newCriterion(tag))
+				.revInclude(Encounter.INCLUDE_SUBJECT)
+				.revInclude(Observation.INCLUDE_SUBJECT)
+				.returnBundle(Bundle.class);
+		}
+	}
+
+	static class FindEncountersForProviderWithPatientTagIncludePatient extends BaseTest {
+
+		@Override
+		String getName() {
+			return "ENCS_FOR_PROVIDER_WITH_PT_TAG_INCLUDE_PT";
+		}
+
+		@Override
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
+			String tag = PlaygroundConstants.randomTag();
+			Encounter encounter = ourEncounters.get((int) ((double) ourEncounters.size() * Math.random()));
+			String practitioner = encounter.getParticipantFirstRep().getIndividual().getReference();
+
+			return theClient
+				.search()
+				.forResource("Encounter")
+				.where(new ReferenceClientParam("practitioner").hasId(practitioner))
+				.and(ourTagMode.newCriterion(tag))
+				.include(Encounter.INCLUDE_SUBJECT)
+				.returnBundle(Bundle.class);
+		}
+	}
+
+	static class FindObservationsAboveThresholdWithTagIncludeEncounter extends BaseTest {
+
+		@Override
+		String getName() {
+			return "OBS_ABOVE_THRSHOLD_WITH_TAG_INCLUDE_ENC";
+		}
+
+		@Override
+		protected IQuery<Bundle> newQuery(IGenericClient theClient) {
+			String tag = PlaygroundConstants.randomTag();
+			return theClient
+				.search()
+				.forResource("Observation")
+				.where(new TokenClientParam("code").exactly().systemAndCode("http://loinc.org", "29463-7"))
+				.and(new QuantityClientParam("value-quantity").greaterThan().number(90).andUnits("http://unitsofmeasure.org", "kg"))
+				.and(ourTagMode.newCriterion(tag))
+				.include(Observation.INCLUDE_ENCOUNTER)
+				.returnBundle(Bundle.class);
+		}
+	}
+
+	public static void main(String[] args) {
+		initialize(true);
 
 		StringBuilder headerRow = new StringBuilder();
 		for (var nextTask : ourTasks) {
 			headerRow.append(nextTask.getName()).append(",");
+			headerRow.append(nextTask.getName()).append("_TTFB").append(",");
+			headerRow.append(nextTask.getName()).append("_XFER").append(",");
+			headerRow.append(nextTask.getName()).append("_PARSE").append(",");
 //			headerRow.append(nextTask.getName() + "_RES_MEDIAN").append(",");
 		}
 		writeCsvLine(headerRow);
@@ -207,18 +579,170 @@ public class Step3_Queries {
 				Snapshot elapsedSnapshot = nextTask.getElapsedMillisHistogram().getSnapshot();
 				Snapshot resultsSnapshot = nextTask.getResultsHistogram().getSnapshot();
 				csvRow.append(formatNumber(elapsedSnapshot.getMedian())).append(",");
+				csvRow.append(formatMicrosAsMillis(nextTask.getHistogram("ttfb-micros").getSnapshot().getMedian())).append(",");
+				csvRow.append(formatMicrosAsMillis(nextTask.getHistogram("transfer-micros").getSnapshot().getMedian())).append(",");
+				csvRow.append(formatMicrosAsMillis(nextTask.getHistogram("parse-micros").getSnapshot().getMedian())).append(",");
 //				csvRow.append(formatNumber(resultsSnapshot.getMedian())).append(",");
 			}
 			writeCsvLine(csvRow);
+			if (ourCardinalityMismatchCount.get() > 0) {
+				ourLog.warn("{} queries so far have matched a different number of resources than expected", ourCardinalityMismatchCount.get());
+			}
+			if (ourQueryFailureCount.get() > 0) {
+				ourLog.warn("{} queries so far have failed", ourQueryFailureCount.get());
+			}
+			if (ourEndpointPool.getNodes().size() > 1) {
+				ourEndpointPool.logReport();
+			}
 		}
 
 	}
 
-	private static String formatNumber(double theInput) {
+	/**
+	 * Applies the payload mode to a search and executes it with {@link ResponseTimer} timing. The caller
+	 * must call {@link ResponseTimer#finish()} afterwards, whether or not the search succeeded.
+	 *
+	 * @param theRequestTotal If true, an accurate <code>Bundle.total</code> is requested
+	 */
+	static Bundle executeTimed(IQuery<Bundle> theQuery, boolean theRequestTotal) {
+		IQuery<Bundle> query = ourPayloadMode.apply(theQuery);
+		if (theRequestTotal) {
+			query = query.totalMode(SearchTotalModeEnum.ACCURATE);
+		}
+		ResponseTimer.start();
+		return query.execute();
+	}
+
+	/**
+	 * Creates a client factory whose clients time their requests using {@link ResponseTimer}. HAPI clients
+	 * send their requests through the restful client factory of their FhirContext (not the factory which
+	 * created them), so the factory belongs to a dedicated context. This keeps the timing HTTP client from
+	 * being shared with, or replaced by, other users of the cached context such as the uploader in Step4.
+	 */
+	static IRestfulClientFactory newTimingClientFactory(boolean theDiscardBody) {
+		IRestfulClientFactory retVal = FhirContext.forR4().getRestfulClientFactory();
+		retVal.setHttpClient(ResponseTimer.newHttpClient(10000000, theDiscardBody));
+		return retVal;
+	}
+
+	/**
+	 * Creates the client, loads the data used to build queries and creates the tests
+	 *
+	 * @param theCheckCardinality If false, the {@link CardinalityOracle} isn't loaded and result counts aren't checked
+	 */
+	static void initialize(boolean theCheckCardinality) {
+		IRestfulClientFactory clientFactory = newTimingClientFactory(ourDiscardBody);
+		// The tests run one query at a time
+		ourEndpointPool = new EndpointPool(EndpointPool.getConfiguredEndpoints(), clientFactory::newGenericClient, 1);
+		ourClient = ourEndpointPool.getAnyClient();
+
+		preLoadNames();
+		preLoadEncounters();
+		if (theCheckCardinality) {
+			loadCardinalityOracle();
+		}
+
+		ourTasks.add(new FindAllPatientsWithTagTest());
+		ourTasks.add(new FindAllPatientsWithSpecificNameTest());
+		ourTasks.add(new FindAllEncountersWithTagTest());
+		ourTasks.add(new FindObservationsAboveThreasholdWithTagTest());
+		ourTasks.add(new FindEncountersForProviderWithPatientTag());
+		ourTasks.add(new FindEncountersOnDateWithPatientTag());
+		ourTasks.add(new FindEncountersInDateRangeWithPatientTag(7));
+		ourTasks.add(new FindEncountersInDateRangeWithPatientTag(30));
+		ourTasks.add(new FindEncountersInDateRangeWithPatientTag(365));
+		ourTasks.add(new FindPatientsWithObservationAboveThresholdWithTagTest());
+		ourTasks.add(new FindObservationsAboveThresholdWithChainedPatientTagTest());
+		ourTasks.add(new FindPatientsWithTagRevIncludeEncountersAndObservationsTest());
+		ourTasks.add(new FindEncountersForProviderWithPatientTagIncludePatient());
+		ourTasks.add(new FindObservationsAboveThresholdWithTagIncludeEncounter());
+
+		// Sweep the number of tags granted to the searching user, e.g. -DtagCounts=1,5,20,100
+		String tagCountsString = System.getProperty("tagCounts", "1,5,20,100");
+		for (String nextTagCountString : tagCountsString.split(",")) {
+			int tagCount = Integer.parseInt(nextTagCountString.trim());
+			ourTasks.add(new FindAllPatientsWithAnyOfTagsTest(tagCount));
+			ourTasks.add(new FindEncountersForProviderWithAnyOfPatientTagsTest(tagCount));
+			if (tagCount >= 2) {
+				ourTasks.add(new FindAllPatientsWithTagGroupsTest(tagCount, 2));
+			}
+		}
+	}
+
+	static EndpointPool getEndpointPool() {
+		return ourEndpointPool;
+	}
+
+	/**
+	 * Loads the oracle written when the data was staged (for the same -DpatientFile as Step2_DataUploader), if there
+	 * is one. A different oracle in the staged files directory can be named using -DoracleFile, e.g. the one written
+	 * by Step1and2_StageAndUpload without -Dtee.
+	 */
+	private static void loadCardinalityOracle() {
+		String oracleFileName = System.getProperty("oracleFile");
+		File oracleFile = oracleFileName != null
+			? new File(Step1_FileStager.STAGED_SYNTHEA_FILES, oracleFileName)
+			: CardinalityOracle.getOracleFile(System.getProperty("patientFile", Step1_FileStager.PATIENT_FILES_NDJSON_GZ));
+		if (!oracleFile.exists()) {
+			ourLog.info("No cardinality oracle found at {} - Result counts will not be checked", oracleFile);
+			return;
+		}
+
+		File logFile = new File(System.getProperty("cardinalityLog", "target/query-cardinality.csv"));
+		try {
+			ourCardinalityOracle = CardinalityOracle.read(oracleFile);
+			FileUtils.forceMkdirParent(logFile);
+			ourCardinalityLog = new PrintWriter(new FileWriter(logFile, StandardCharsets.UTF_8, false));
+		} catch (IOException e) {
+			throw new InternalErrorException(e);
+		}
+		ourLog.info("Loaded cardinality oracle for {} patients, writing expected and actual result counts to {}", ourCardinalityOracle.getPatientCount(), logFile);
+		writeCardinalityLine("TEST,EXPECTED,ACTUAL,RETURNED,ELAPSED_MS,TOTAL_MODE,MISMATCH");
+	}
+
+	private static synchronized void writeCardinalityLine(String theLine) {
+		ourCardinalityLog.println(theLine);
+		ourCardinalityLog.flush();
+	}
+
+	/**
+	 * @return The number of queries so far whose result count didn't match the {@link CardinalityOracle}
+	 */
+	static long getCardinalityMismatchCount() {
+		return ourCardinalityMismatchCount.get();
+	}
+
+	/**
+	 * @return The number of queries so far which failed, and so weren't included in the timings
+	 */
+	static long getQueryFailureCount() {
+		return ourQueryFailureCount.get();
+	}
+
+	static List<BaseTest> getTasks() {
+		return ourTasks;
+	}
+
+	/**
+	 * Starts a new reporting bucket
+	 *
+	 * @return The elapsed millis histogram recorded by each test (keyed by test name) since the previous call
+	 */
+	static Map<String, Histogram> swapBucketHistograms() {
+		Map<String, Histogram> retVal = ourBucketElapsedMillisHistograms;
+		ourBucketElapsedMillisHistograms = new ConcurrentHashMap<>();
+		return retVal;
+	}
+
+	static String formatNumber(double theInput) {
 		return ourDecimalFormat.format(theInput);
 	}
 
-	private static void writeCsvLine(StringBuilder theHeaderRow) {
+	private static String formatMicrosAsMillis(double theMicros) {
+		return formatNumber(theMicros / 1000.0);
+	}
+
+	static void writeCsvLine(StringBuilder theHeaderRow) {
 		ourLog.info(theHeaderRow.toString());
 	}
 
@@ -237,7 +761,7 @@ public class Step3_Queries {
 				.getEntry()
 				.stream()
 				.map(t -> (Encounter) t.getResource())
-				.filter(t -> t.getMeta().getProfile().size() > 0)
+				.filter(t -> !ourTagMode.getTags(t.getMeta()).isEmpty())
 				.forEach(t -> ourEncounters.add(t));
 			if (outcome.getLink(Constants.LINK_NEXT) != null) {
 				ourLog.info("Loading next page of Encounters");
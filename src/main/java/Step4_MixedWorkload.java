@@ -0,0 +1,116 @@
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Snapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the Step2_DataUploader ingest and the Step3_Queries workload at the same time, in
+ * order to measure how much a bulk load hurts search latency.
+ * <p>
+ * Every bucket (-DbucketSeconds, default 10) a CSV line is written containing the ingest
+ * throughput during that bucket followed by the query latency percentiles recorded during
+ * the same bucket. The ingest rate is controlled using -DingestRate (patients/sec). Query
+ * result counts aren't checked against the {@link CardinalityOracle}, since they change as
+ * the data is ingested.
+ * </p>
+ */
+public class Step4_MixedWorkload {
+	private static final Logger ourLog = LoggerFactory.getLogger(Step4_MixedWorkload.class);
+	private static final AtomicBoolean ourFinishedUploading = new AtomicBoolean(false);
+
+	private static long ourLastUploadedCount;
+	private static long ourLastResourcesUploadedCount;
+	private static long ourLastBucketMillis;
+	private static long ourStartMillis;
+
+	public static void main(String[] args) throws Exception {
+		int bucketSeconds = Integer.parseInt(System.getProperty("bucketSeconds", "10"));
+
+		// The oracle describes the whole staged file, but the server only holds part of it until the ingest has finished
+		Step3_Queries.initialize(false);
+
+		StringBuilder headerRow = new StringBuilder();
+		headerRow.append("SECONDS,PATIENTS_PER_SEC,RESOURCES_PER_SEC,");
+		for (var nextTask : Step3_Queries.getTasks()) {
+			headerRow.append(nextTask.getName()).append("_P50").append(",");
+			headerRow.append(nextTask.getName()).append("_P95").append(",");
+			headerRow.append(nextTask.getName()).append("_P99").append(",");
+		}
+		Step3_Queries.writeCsvLine(headerRow);
+
+		Thread uploaderThread = new Thread(() -> {
+			try {
+				Step2_DataUploader.main(new String[0]);
+			} catch (Exception e) {
+				ourLog.error("Failure during upload", e);
+			} finally {
+				ourFinishedUploading.set(true);
+			}
+		}, "uploader");
+
+		ourStartMillis = System.currentTimeMillis();
+		ourLastBucketMillis = ourStartMillis;
+		Step3_Queries.swapBucketHistograms();
+		uploaderThread.start();
+
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		reporter.scheduleAtFixedRate(Step4_MixedWorkload::writeBucket, bucketSeconds, bucketSeconds, TimeUnit.SECONDS);
+
+		while (!ourFinishedUploading.get()) {
+			for (var nextTask : Step3_Queries.getTasks()) {
+				nextTask.run();
+				if (ourFinishedUploading.get()) {
+					break;
+				}
+			}
+		}
+
+		reporter.shutdown();
+		reporter.awaitTermination(1, TimeUnit.MINUTES);
+		writeBucket();
+		ourLog.info("Ingest is complete, stopping");
+	}
+
+	private static synchronized void writeBucket() {
+		long now = System.currentTimeMillis();
+		double bucketSeconds = (now - ourLastBucketMillis) / 1000.0;
+		long uploaded = Step2_DataUploader.getUploadedCount();
+		long resourcesUploaded = Step2_DataUploader.getResourcesUploadedCount();
+		Map<String, Histogram> histograms = Step3_Queries.swapBucketHistograms();
+
+		StringBuilder csvRow = new StringBuilder();
+		csvRow.append((now - ourStartMillis) / 1000).append(",");
+		csvRow.append(Step3_Queries.formatNumber((uploaded - ourLastUploadedCount) / bucketSeconds)).append(",");
+		csvRow.append(Step3_Queries.formatNumber((resourcesUploaded - ourLastResourcesUploadedCount) / bucketSeconds)).append(",");
+		for (var nextTask : Step3_Queries.getTasks()) {
+			Histogram histogram = histograms.get(nextTask.getName());
+			if (histogram == null) {
+				// The test didn't run during this bucket
+				csvRow.append(",,,");
+				continue;
+			}
+			Snapshot snapshot = histogram.getSnapshot();
+			csvRow.append(Step3_Queries.formatNumber(snapshot.getMedian())).append(",");
+			csvRow.append(Step3_Queries.formatNumber(snapshot.get95thPercentile())).append(",");
+			csvRow.append(Step3_Queries.formatNumber(snapshot.get99thPercentile())).append(",");
+		}
+		Step3_Queries.writeCsvLine(csvRow);
+		if (Step3_Queries.getQueryFailureCount() > 0) {
+			ourLog.warn("{} queries so far have failed", Step3_Queries.getQueryFailureCount());
+		}
+		if (Step3_Queries.getEndpointPool().getNodes().size() > 1) {
+			Step3_Queries.getEndpointPool().logReport();
+		}
+
+		ourLastBucketMillis = now;
+		ourLastUploadedCount = uploaded;
+		ourLastResourcesUploadedCount = resourcesUploaded;
+	}
+
+}
@@ -0,0 +1,140 @@
+import ca.uhn.fhir.rest.gclient.ICriterion;
+import ca.uhn.fhir.rest.gclient.StringClientParam;
+import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.PrimitiveType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Where in <code>Resource.meta</code> the access tags are stored, and how
+ * they are searched for.
+ */
+public enum TagModeEnum {
+
+	/**
+	 * Tags are stored as <code>meta.profile</code> URIs and searched using <code>_profile:contains</code>
+	 */
+	PROFILE {
+		@Override
+		public void addTags(Meta theMeta, List<String> theTags) {
+			theTags.forEach(theMeta::addProfile);
+		}
+
+		@Override
+		public void removeTags(Meta theMeta) {
+			theMeta.getProfile().clear();
+		}
+
+		@Override
+		public List<String> getTags(Meta theMeta) {
+			return theMeta.getProfile().stream().map(PrimitiveType::getValue).collect(Collectors.toList());
+		}
+
+		@Override
+		public ICriterion<?> newCriterion(List<String> theTags) {
+			return new StringClientParam("_profile").contains().values(theTags);
+		}
+
+		@Override
+		public boolean matches(String theSearchedTag, String theStoredTag) {
+			// :contains is a case insensitive substring match, so e.g. 1PCT-1 also matches POINT1PCT-1
+			return theStoredTag.toUpperCase().contains(theSearchedTag.toUpperCase());
+		}
+	},
+
+	/**
+	 * Tags are stored as <code>meta.tag</code> codings and searched using an exact <code>_tag</code> token
+	 */
+	TAG {
+		@Override
+		public void addTags(Meta theMeta, List<String> theTags) {
+			theTags.forEach(t -> theMeta.addTag(PlaygroundConstants.TAG_SYSTEM, t, null));
+		}
+
+		@Override
+		public void removeTags(Meta theMeta) {
+			theMeta.getTag().removeIf(t -> PlaygroundConstants.TAG_SYSTEM.equals(t.getSystem()));
+		}
+
+		@Override
+		public List<String> getTags(Meta theMeta) {
+			return getCodes(theMeta.getTag());
+		}
+
+		@Override
+		public ICriterion<?> newCriterion(List<String> theTags) {
+			return new TokenClientParam("_tag").exactly().systemAndValues(PlaygroundConstants.TAG_SYSTEM, theTags);
+		}
+	},
+
+	/**
+	 * Tags are stored as <code>meta.security</code> codings and searched using an exact <code>_security</code> token
+	 */
+	SECURITY {
+		@Override
+		public void addTags(Meta theMeta, List<String> theTags) {
+			theTags.forEach(t -> theMeta.addSecurity(PlaygroundConstants.TAG_SYSTEM, t, null));
+		}
+
+		@Override
+		public void removeTags(Meta theMeta) {
+			theMeta.getSecurity().removeIf(t -> PlaygroundConstants.TAG_SYSTEM.equals(t.getSystem()));
+		}
+
+		@Override
+		public List<String> getTags(Meta theMeta) {
+			return getCodes(theMeta.getSecurity());
+		}
+
+		@Override
+		public ICriterion<?> newCriterion(List<String> theTags) {
+			return new TokenClientParam("_security").exactly().systemAndValues(PlaygroundConstants.TAG_SYSTEM, theTags);
+		}
+	};
+
+	public abstract void addTags(Meta theMeta, List<String> theTags);
+
+	public abstract void removeTags(Meta theMeta);
+
+	public abstract List<String> getTags(Meta theMeta);
+
+	/**
+	 * Creates a search criterion matching resources carrying any of the given tags
+	 */
+	public abstract ICriterion<?> newCriterion(List<String> theTags);
+
+	public ICriterion<?> newCriterion(String theTag) {
+		return newCriterion(List.of(theTag));
+	}
+
+	/**
+	 * @return Whether a search for one tag matches a resource carrying another
+	 */
+	public boolean matches(String theSearchedTag, String theStoredTag) {
+		return theSearchedTag.equals(theStoredTag);
+	}
+
+	/**
+	 * Parses a comma separated list of mode names, e.g. <code>profile,tag</code>
+	 */
+	public static List<TagModeEnum> parse(String theModes) {
+		List<TagModeEnum> retVal = new ArrayList<>();
+		for (String next : theModes.split(",")) {
+			retVal.add(TagModeEnum.valueOf(next.trim().toUpperCase()));
+		}
+		return retVal;
+	}
+
+	private static List<String> getCodes(List<Coding> theCodings) {
+		return theCodings
+			.stream()
+			.filter(t -> PlaygroundConstants.TAG_SYSTEM.equals(t.getSystem()))
+			.map(Coding::getCode)
+			.collect(Collectors.toList());
+	}
+
+}